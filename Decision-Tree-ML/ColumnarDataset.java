@@ -0,0 +1,116 @@
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A read-only columnar copy of a nominal data set, used to train the decision tree.
+ * Every attribute is kept as one primitive column of value codes (a byte per row when the attribute has at most
+ * 256 values, a short otherwise) next to a column of class values, so split search scans contiguous arrays
+ * instead of going through Instance objects. As in DecisionTree, the class is assumed to be the last attribute.
+ */
+public class ColumnarDataset {
+	private final int numInstances;
+	private final int[] numValues;
+	// for each attribute exactly one of the two columns is set, depending on how many values it has
+	private final byte[][] byteColumns;
+	private final short[][] shortColumns;
+	private final byte[] classes;
+
+	/**
+	 * Copies the values of a data set into columns
+	 * @param data the data set, nominal attributes only
+	 */
+	public ColumnarDataset(Instances data){
+		int numAttributes = data.numAttributes() - 1;
+		this.numInstances = data.numInstances();
+		this.numValues = new int[numAttributes];
+		this.byteColumns = new byte[numAttributes][];
+		this.shortColumns = new short[numAttributes][];
+		this.classes = new byte[numInstances];
+		for(int i = 0; i < numAttributes; i++){
+			numValues[i] = data.attribute(i).numValues();
+			if(numValues[i] <= 256){
+				byteColumns[i] = new byte[numInstances];
+			}
+			else{
+				shortColumns[i] = new short[numInstances];
+			}
+		}
+		for(int row = 0; row < numInstances; row++){
+			Instance instance = data.instance(row);
+			// values are coded the way the tree always read them, (int)instance.value(i)
+			for(int i = 0; i < numAttributes; i++){
+				if(byteColumns[i] != null){
+					byteColumns[i][row] = (byte)instance.value(i);
+				}
+				else{
+					shortColumns[i][row] = (short)instance.value(i);
+				}
+			}
+			classes[row] = (byte)instance.classValue();
+		}
+	}
+
+	public int numInstances(){
+		return numInstances;
+	}
+
+	/**
+	 * @return the number of attributes, excluding the class attribute
+	 */
+	public int numAttributes(){
+		return numValues.length;
+	}
+
+	public int numValues(int attributeIndex){
+		return numValues[attributeIndex];
+	}
+
+	public int value(int attributeIndex, int row){
+		if(byteColumns[attributeIndex] != null){
+			return byteColumns[attributeIndex][row] & 0xFF;
+		}
+		return shortColumns[attributeIndex][row] & 0xFFFF;
+	}
+
+	public int classValue(int row){
+		return classes[row];
+	}
+
+	/**
+	 * Adds the class values of the given rows to a count array
+	 * @param rows row indices
+	 * @param start first position in rows
+	 * @param end position after the last one
+	 * @param counts incremented at each row's class value
+	 */
+	public void countClasses(int[] rows, int start, int end, int[] counts){
+		for(int r = start; r < end; r++){
+			counts[classes[rows[r]]]++;
+		}
+	}
+
+	/**
+	 * Adds the given rows to the contingency table of an attribute
+	 * @param attributeIndex the attribute
+	 * @param rows row indices
+	 * @param start first position in rows
+	 * @param end position after the last one
+	 * @param table incremented at [attribute value][class value] for each row
+	 */
+	public void countValues(int attributeIndex, int[] rows, int start, int end, int[][] table){
+		byte[] byteColumn = byteColumns[attributeIndex];
+		if(byteColumn != null){
+			for(int r = start; r < end; r++){
+				int row = rows[r];
+				table[byteColumn[row] & 0xFF][classes[row]]++;
+			}
+		}
+		else{
+			short[] shortColumn = shortColumns[attributeIndex];
+			for(int r = start; r < end; r++){
+				int row = rows[r];
+				table[shortColumn[row] & 0xFFFF][classes[row]]++;
+			}
+		}
+	}
+}
@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A trained decision tree flattened into arrays, for classification only.
+ * Nodes are numbered breadth-first from the root (node 0), which gives the children of a node consecutive numbers in
+ * value order; for each node the arrays hold the attribute it splits on (-1 for a leaf), the number of its first
+ * child, and the value returned when classification ends there. The fallback of empty leaves to their parent's value
+ * is resolved while compiling, so no training data or Node objects are kept, and predicting is a single loop with one
+ * branch per level. Attribute values must be codes of the attribute's own values, as in training.
+ */
+public class CompiledTree {
+	// rows per task when scoring in parallel
+	static final int BATCH_CHUNK = 16384;
+
+	private final int[] attributes;
+	private final int[] childOffsets;
+	private final double[] values;
+	// the length of the path from the root to each node
+	private final int[] depths;
+
+	/**
+	 * Flattens the tree under a given root
+	 * @param root the root node of a trained (and possibly pruned) tree
+	 */
+	CompiledTree(Node root){
+		// numbering the nodes breadth-first
+		List<Node> nodes = new ArrayList<>();
+		nodes.add(root);
+		for(int i = 0; i < nodes.size(); i++){
+			Node current = nodes.get(i);
+			if(current.children != null){
+				for(int j = 0; j < current.children.length; j++){
+					nodes.add(current.children[j]);
+				}
+			}
+		}
+		this.attributes = new int[nodes.size()];
+		this.childOffsets = new int[nodes.size()];
+		this.values = new double[nodes.size()];
+		this.depths = new int[nodes.size()];
+		int nextChild = 1;
+		for(int i = 0; i < nodes.size(); i++){
+			Node current = nodes.get(i);
+			// a leaf which no training instance reached answers as its parent
+			if(current.numInstances() == 0 && current.parent != null){
+				values[i] = current.parent.returnValue;
+			}
+			else{
+				values[i] = current.returnValue;
+			}
+			if(current.children == null){
+				attributes[i] = -1;
+				continue;
+			}
+			attributes[i] = current.attributeIndex;
+			childOffsets[i] = nextChild;
+			for(int j = 0; j < current.children.length; j++){
+				depths[nextChild + j] = depths[i] + 1;
+			}
+			nextChild += current.children.length;
+		}
+	}
+
+	/**
+	 * Finds the node where the classification of a row of attribute value codes ends
+	 * @param features the value of each attribute, indexed by attribute index
+	 * @return the node number
+	 */
+	private int leaf(int[] features){
+		int node = 0;
+		int attribute;
+		while((attribute = attributes[node]) >= 0){
+			node = childOffsets[node] + features[attribute];
+		}
+		return node;
+	}
+
+	/**
+	 * Finds the node where the classification of a Weka instance ends
+	 * @param instance the instance
+	 * @return the node number
+	 */
+	private int leaf(Instance instance){
+		int node = 0;
+		int attribute;
+		while((attribute = attributes[node]) >= 0){
+			node = childOffsets[node] + (int)instance.value(attribute);
+		}
+		return node;
+	}
+
+	/**
+	 * Classifies one row of attribute value codes
+	 * @param features the value of each attribute, indexed by attribute index
+	 * @return the predicted class value
+	 */
+	public double predict(int[] features){
+		return values[leaf(features)];
+	}
+
+	/**
+	 * Classifies one row of attribute values as Weka stores them (see Instance.toDoubleArray)
+	 * @param features the value of each attribute, indexed by attribute index
+	 * @return the predicted class value
+	 */
+	public double predict(double[] features){
+		int node = 0;
+		int attribute;
+		while((attribute = attributes[node]) >= 0){
+			node = childOffsets[node] + (int)features[attribute];
+		}
+		return values[node];
+	}
+
+	/**
+	 * Classifies a Weka instance
+	 * @param instance the instance
+	 * @return the predicted class value
+	 */
+	public double classify(Instance instance){
+		return values[leaf(instance)];
+	}
+
+	/**
+	 * Classifies a batch of rows
+	 * @param rows rows of attribute value codes
+	 * @return the predicted class value of each row
+	 */
+	public double[] predict(int[][] rows){
+		return score(rows, null).predictions();
+	}
+
+	/**
+	 * Classifies a batch of rows in one pass, collecting the error rate and path lengths along the way
+	 * @param rows rows of attribute value codes
+	 * @param labels the class value of each row (negative when unknown), or null when there are none
+	 * @return the predictions and their statistics
+	 */
+	public Scores score(int[][] rows, int[] labels){
+		Scores scores = new Scores(new double[rows.length]);
+		scoreRange(rows, labels, 0, rows.length, scores);
+		return scores;
+	}
+
+	/**
+	 * Like score(rows, labels), splitting the rows into chunks scored as fork/join tasks
+	 * @param rows rows of attribute value codes
+	 * @param labels the class value of each row (negative when unknown), or null when there are none
+	 * @param pool the pool running the tasks
+	 * @return the predictions and their statistics
+	 */
+	public Scores score(int[][] rows, int[] labels, ForkJoinPool pool){
+		return pool.invoke(new ScoreTask(rows, labels, new double[rows.length], 0, rows.length));
+	}
+
+	/**
+	 * Classifies every instance of a data set in one pass
+	 * @param data the data set
+	 * @return the predictions and their statistics
+	 */
+	public Scores score(Instances data){
+		Scores scores = new Scores(new double[data.numInstances()]);
+		for(int i = 0; i < data.numInstances(); i++){
+			Instance instance = data.instance(i);
+			int node = leaf(instance);
+			scores.add(i, values[node], depths[node], instance.classIsMissing() ? -1 : (int)instance.classValue());
+		}
+		return scores;
+	}
+
+	/**
+	 * Classifies the rows of a file as they are read, without loading the data set. The predictions are kept, so
+	 * memory grows with the number of rows; see score(in, false) for statistics only
+	 * @param in the rows
+	 * @return the predictions and their statistics
+	 * @throws IOException if the rows cannot be read or hold values the attributes do not have
+	 */
+	public Scores score(RowReader in) throws IOException {
+		return score(in, true);
+	}
+
+	/**
+	 * Classifies the rows of a file as they are read, without loading the data set
+	 * @param in the rows
+	 * @param keepPredictions false to collect the statistics only, which scores a file of any size in constant memory
+	 * @return the statistics, and the predictions when kept
+	 * @throws IOException if the rows cannot be read or hold values the attributes do not have
+	 */
+	public Scores score(RowReader in, boolean keepPredictions) throws IOException {
+		Scores scores = new Scores(keepPredictions ? new double[1024] : null);
+		int[] features = new int[in.numAttributes()];
+		int row = 0;
+		while(in.next(features)){
+			int node = leaf(features);
+			scores.add(row++, values[node], depths[node], features[in.classIndex()]);
+		}
+		return scores;
+	}
+
+	private void scoreRange(int[][] rows, int[] labels, int start, int end, Scores scores){
+		for(int i = start; i < end; i++){
+			int node = leaf(rows[i]);
+			scores.add(i, values[node], depths[node], labels == null ? -1 : labels[i]);
+		}
+	}
+
+	/**
+	 * Scores a range of rows, splitting it in halves down to BATCH_CHUNK rows. All tasks write their predictions
+	 * into the same array, each to its own range.
+	 */
+	private class ScoreTask extends RecursiveTask<Scores> {
+		private final int[][] rows;
+		private final int[] labels;
+		private final double[] predictions;
+		private final int start;
+		private final int end;
+
+		ScoreTask(int[][] rows, int[] labels, double[] predictions, int start, int end){
+			this.rows = rows;
+			this.labels = labels;
+			this.predictions = predictions;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Scores compute(){
+			if(end - start <= BATCH_CHUNK){
+				Scores scores = new Scores(predictions);
+				scoreRange(rows, labels, start, end, scores);
+				return scores;
+			}
+			int middle = (start + end) >>> 1;
+			ScoreTask left = new ScoreTask(rows, labels, predictions, start, middle);
+			left.fork();
+			Scores scores = new ScoreTask(rows, labels, predictions, middle, end).compute();
+			scores.merge(left.join());
+			return scores;
+		}
+	}
+
+	/**
+	 * @return the number of nodes, leaves included
+	 */
+	public int numNodes(){
+		return attributes.length;
+	}
+
+	/**
+	 * The result of scoring a batch: a prediction per row, the error rate, and the length of the paths from the root
+	 * to the nodes where classification ended.
+	 */
+	public static class Scores {
+		private double[] predictions;
+		private int count;
+		private int labeled;
+		private int mistakes;
+		private int labeledMistakes;
+		private long sumOfDepths;
+		private int maxDepth;
+
+		/**
+		 * @param predictions where the predictions go, or null to keep the statistics only
+		 */
+		Scores(double[] predictions){
+			this.predictions = predictions;
+		}
+
+		/**
+		 * Records the classification of one row
+		 * @param row the row's position in the batch
+		 * @param prediction the predicted class value
+		 * @param depth the length of the row's path
+		 * @param label the row's class value, negative when unknown
+		 */
+		void add(int row, double prediction, int depth, int label){
+			if(predictions != null){
+				if(row == predictions.length){
+					predictions = Arrays.copyOf(predictions, predictions.length * 2);
+				}
+				predictions[row] = prediction;
+			}
+			count++;
+			if(label >= 0){
+				labeled++;
+				if(prediction != label){
+					mistakes++;
+					labeledMistakes++;
+				}
+			}
+			else{
+				// an unknown class never equals the prediction, as in DecisionTree.calcAvgError before scoring
+				mistakes++;
+			}
+			sumOfDepths += depth;
+			if(depth > maxDepth){
+				maxDepth = depth;
+			}
+		}
+
+		/**
+		 * Adds the statistics of another part of the same batch
+		 * @param other scores of rows this one did not count
+		 */
+		void merge(Scores other){
+			count += other.count;
+			labeled += other.labeled;
+			mistakes += other.mistakes;
+			labeledMistakes += other.labeledMistakes;
+			sumOfDepths += other.sumOfDepths;
+			maxDepth = Math.max(maxDepth, other.maxDepth);
+		}
+
+		/**
+		 * @return the predicted class value of each row, in order
+		 * @throws IllegalStateException if the rows were scored for statistics only
+		 */
+		public double[] predictions(){
+			if(predictions == null){
+				throw new IllegalStateException("The predictions were not kept");
+			}
+			return predictions.length == count ? predictions : Arrays.copyOf(predictions, count);
+		}
+
+		public int numRows(){
+			return count;
+		}
+
+		/**
+		 * @return the share of all rows that were misclassified, a row whose class is unknown counting as misclassified
+		 */
+		public double errorRate(){
+			return (double)mistakes/count;
+		}
+
+		/**
+		 * @return the share of the rows with a known class that were misclassified
+		 */
+		public double labeledErrorRate(){
+			return (double)labeledMistakes/labeled;
+		}
+
+		public int maxDepth(){
+			return maxDepth;
+		}
+
+		public double avgDepth(){
+			return (double)sumOfDepths/(double)count;
+		}
+	}
+}
@@ -1,19 +1,44 @@
 import weka.classifiers.Classifier;
 import weka.core.*;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 class Node {
 	Node[] children;
 	Node parent;
 	int attributeIndex;
 	double returnValue;
-	Instances currentData;
+	// the node's training instances are rows[start, end) of the tree's shared row permutation
+	int start;
+	int end;
+
+	int numInstances(){
+		return end - start;
+	}
 }
 
 public class DecisionTree implements Classifier {
+	// in a parallel build, nodes with at least this many instances score their attributes concurrently
+	static final int PARALLEL_SPLIT_THRESHOLD = 8192;
+	// in a parallel build, subtrees with fewer instances than this are grown sequentially inside one task
+	static final int SEQUENTIAL_SUBTREE_THRESHOLD = 512;
+
 	private Node rootNode;
+	// the training data, and the order of its rows: every node owns the range of rows that reached it, and
+	// splitting a node reorders its range so that each child's rows are contiguous
+	private ColumnarDataset trainingData;
+	private int[] rows;
+	private int[] scratch;
+	// set by compile(), classification then runs on the flat arrays
+	private CompiledTree compiledTree;
+	// a compiled copy of a tree that may still be pruned, used for scoring until buildTree or prune change the tree
+	private CompiledTree scoringTree;
 
 	/**
 	 * A getter for the current tree's root node
@@ -29,49 +54,148 @@ public class DecisionTree implements Classifier {
 	 * @param isGini build with gini or entropy
 	 */
 	public void buildTree(Instances data, boolean isGini){
-		double currentGain;
+		initTraining(data);
+		growSequentially(this.rootNode, isGini);
+	}
+
+	/**
+	 * Builds the same Decision Tree as buildTree(data, isGini) using the threads of a fork/join pool: independent
+	 * subtrees are grown as separate tasks, and the attributes of large nodes are scored concurrently
+	 * @param data the data set
+	 * @param isGini build with gini or entropy
+	 * @param pool the pool running the build
+	 */
+	public void buildTree(Instances data, boolean isGini, ForkJoinPool pool){
+		initTraining(data);
+		pool.invoke(new GrowTask(this.rootNode, isGini));
+	}
+
+	/**
+	 * Prepares the training data and a root node holding all of it
+	 * @param data the data set
+	 */
+	private void initTraining(Instances data){
+		this.compiledTree = null;
+		this.scoringTree = null;
+		this.trainingData = new ColumnarDataset(data);
+		this.rows = new int[trainingData.numInstances()];
+		this.scratch = new int[rows.length];
+		for(int i = 0; i < rows.length; i++){
+			rows[i] = i;
+		}
+		this.rootNode = new Node();
+		this.rootNode.start = 0;
+		this.rootNode.end = rows.length;
+	}
+
+	/**
+	 * Grows the subtree under a given node breadth-first on the calling thread
+	 * @param root the node to grow from
+	 * @param isGini build with gini or entropy
+	 */
+	private void growSequentially(Node root, boolean isGini){
 		// initialize the queue to hold the nodes by order
 		Node current;
 		Queue<Node> q = new LinkedList<>();
-		// initialize the root node to hold the entire given data
-		this.rootNode = new Node();
-		this.rootNode.currentData = data;
-		q.add(rootNode);
+		q.add(root);
 		while(!q.isEmpty()){
 			current = q.remove();
-			current.returnValue = calcReturnValue(current);
-			if(current.currentData.numInstances() > 0) {
-				if (!perfectlyClassified(current)) {
-					// setting the attributeIndex of the current node to be the best one
-					int attIndex = findBestAttribute(current, isGini);
-					if(attIndex != -1) {
-						current.attributeIndex = attIndex;
-						Instances[] arrayOfChildrenData = distributeData(current.currentData, current.attributeIndex);
-						Node[] children = new Node[arrayOfChildrenData.length];
-						current.children = children;
-						for (int i = 0; i < arrayOfChildrenData.length; i++) {
-							// constructing a node from each data segment
-							Node currentChild = new Node();
-							children[i] = currentChild;
-							currentChild.parent = current;
-							currentChild.currentData = arrayOfChildrenData[i];
-							// add the node to the queue
-							if (arrayOfChildrenData[i] != null) {
-								q.add(currentChild);
-							}
-						}
-					}
+			Node[] children = splitNode(current, isGini, false);
+			if(children != null){
+				// add the children to the queue
+				for(int i = 0; i < children.length; i++){
+					q.add(children[i]);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Sets the return value of a node and, when the node is worth splitting, its attribute and children.
+	 * A node only reads and reorders its own range of rows, so different nodes can be split at the same time.
+	 * @param current the node
+	 * @param isGini build with gini or entropy
+	 * @param parallelAttributes score the attributes as concurrent tasks (only from inside a fork/join pool)
+	 * @return the node's children, or null when the node stays a leaf
+	 */
+	private Node[] splitNode(Node current, boolean isGini, boolean parallelAttributes){
+		current.returnValue = calcReturnValue(current);
+		if(current.numInstances() == 0 || perfectlyClassified(current)){
+			return null;
+		}
+		// setting the attributeIndex of the current node to be the best one
+		int attIndex = findBestAttribute(current, isGini, parallelAttributes);
+		if(attIndex == -1){
+			return null;
+		}
+		current.attributeIndex = attIndex;
+		int[] bounds = distributeData(current, current.attributeIndex);
+		Node[] children = new Node[bounds.length - 1];
+		current.children = children;
+		for (int i = 0; i < children.length; i++) {
+			// constructing a node from each data segment
+			Node currentChild = new Node();
+			children[i] = currentChild;
+			currentChild.parent = current;
+			currentChild.start = bounds[i];
+			currentChild.end = bounds[i + 1];
+		}
+		return children;
+	}
+
+	/**
+	 * Grows the subtree under one node of a parallel build, forking a task per child
+	 */
+	private class GrowTask extends RecursiveAction {
+		private final Node node;
+		private final boolean isGini;
+
+		GrowTask(Node node, boolean isGini){
+			this.node = node;
+			this.isGini = isGini;
+		}
+
+		@Override
+		protected void compute(){
+			// below the threshold a task costs more than the subtree it would grow
+			if(node.numInstances() < SEQUENTIAL_SUBTREE_THRESHOLD){
+				growSequentially(node, isGini);
+				return;
+			}
+			Node[] children = splitNode(node, isGini, node.numInstances() >= PARALLEL_SPLIT_THRESHOLD);
+			if(children != null){
+				List<GrowTask> tasks = new ArrayList<>();
+				for(int i = 0; i < children.length; i++){
+					tasks.add(new GrowTask(children[i], isGini));
+				}
+				invokeAll(tasks);
+			}
+		}
+	}
+
 	@Override
 	public void buildClassifier(Instances arg0) throws Exception {
 		buildTree(arg0, true);
 	}
+	/**
+	 * Compiles the trained (and pruned) tree into flat arrays and releases the training data. Afterwards
+	 * classifyInstance runs on the compiled tree, and the tree can no longer be pruned.
+	 * @return the compiled tree
+	 */
+	public CompiledTree compile(){
+		this.compiledTree = new CompiledTree(this.rootNode);
+		this.scoringTree = null;
+		this.trainingData = null;
+		this.rows = null;
+		this.scratch = null;
+		return this.compiledTree;
+	}
+
     @Override
 	public double classifyInstance(Instance instance) {
+		if(this.compiledTree != null){
+			return this.compiledTree.classify(instance);
+		}
 		Node currentNode = this.rootNode;
 		Node nextNode;
 		// traversing the tree
@@ -88,7 +212,7 @@ public class DecisionTree implements Classifier {
 			}
 		}
 		// if the current node has no instances, classify as the parent node
-		if(currentNode.currentData.numInstances() == 0){
+		if(currentNode.numInstances() == 0){
 			return currentNode.parent.returnValue;
 		}
 		return currentNode.returnValue;
@@ -96,37 +220,71 @@ public class DecisionTree implements Classifier {
 
 
 	/**
-	 * Calculate the average error on a given instances set
+	 * Calculate the average error on a given instances set; an instance with a missing class counts as an error
 	 * @param data the data set
 	 * @return the average calculation error
 	 */
 	public double calcAvgError(Instances data){
-		// initialize a variable that will count the number of prediction mistakes in order to calculate the error
-		int numberOfPredictionMistakes = 0;
-		double currentClassification;
-		for(int i = 0; i < data.numInstances(); i++){
-			currentClassification = classifyInstance(data.instance(i));
-			// in case a prediction mistake was made, add 1 to the number of mistakes
-			if(currentClassification != data.instance(i).classValue()){
-				numberOfPredictionMistakes++;
-			}
+		return score(data).errorRate();
+	}
+
+	/**
+	 * Classifies every instance of a given set in a single pass, giving the predictions, the error and the length of
+	 * the classification paths together
+	 * @param data the data set
+	 * @return the predictions and their statistics
+	 */
+	public CompiledTree.Scores score(Instances data){
+		return compiled().score(data);
+	}
+
+	/**
+	 * The compiled form of the tree: the one compile() made, or a copy kept until the tree is rebuilt or pruned
+	 * @return the compiled tree
+	 */
+	private CompiledTree compiled(){
+		if(this.compiledTree != null){
+			return this.compiledTree;
+		}
+		if(this.scoringTree == null){
+			this.scoringTree = new CompiledTree(this.rootNode);
 		}
-		return (double)numberOfPredictionMistakes/data.numInstances();
+		return this.scoringTree;
 	}
 
 	/**
 	 * Finds the best attribute for the current split
 	 * @param current the current node for which we want to find the best attribute for the split
 	 * @param isGini notifies the method if the method we are using is Gini or Entropy
+	 * @param parallel score the attributes as concurrent fork/join tasks
 	 * @return
 	 */
-	private int findBestAttribute(Node current, boolean isGini) {
+	private int findBestAttribute(Node current, boolean isGini, boolean parallel) {
 		double maxGain = 0;
 		double currentGain;
 		int bestAttributeIndex = 0;
-		// iterate over all possible attributes for the current node (excluding class atribute)
-		for (int i = 0; i < current.currentData.numAttributes() - 1; i++) {
-			currentGain = calcGain(current, current.currentData, i, isGini);
+		// count the node's classes once, every candidate split is then scored from its own contingency table
+		int[] classCounts = countClassification(current);
+		double[] gains = new double[trainingData.numAttributes()];
+		if (parallel) {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int i = 0; i < gains.length; i++) {
+				int attributeIndex = i;
+				tasks.add(ForkJoinTask.adapt(() -> {
+					gains[attributeIndex] = calcGain(classCounts, contingencyTable(current, attributeIndex), isGini);
+				}));
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+		else {
+			for (int i = 0; i < gains.length; i++) {
+				gains[i] = calcGain(classCounts, contingencyTable(current, i), isGini);
+			}
+		}
+		// iterate over all possible attributes for the current node (excluding class atribute), in order, so ties go
+		// to the same attribute however the gains were computed
+		for (int i = 0; i < gains.length; i++) {
+			currentGain = gains[i];
 			// in case we got a better Gain for the current attribute, change the maxGain and the best attribute index
 			if (currentGain > maxGain) {
 				maxGain = currentGain;
@@ -172,57 +330,69 @@ public class DecisionTree implements Classifier {
 	}
 
 	/**
-	 * Distributes the given data into the children by the current attribute's possible values
-	 * @param data the data set which we want to distribute
+	 * Distributes the node's rows into the children by the current attribute's possible values: the node's range of
+	 * the row permutation is reordered (keeping the relative order of the rows) so that the rows of each value are
+	 * contiguous
+	 * @param current the node whose rows we want to distribute
  	 * @param attributeIndex current attribute index
-	 * @return an array with distributed data, as each cell in the array represents the data that belongs to the
-	 * corresponding value of the current attribute
+	 * @return the boundaries of the children's ranges, the rows holding value i are rows[bounds[i], bounds[i + 1])
 	 */
-	private Instances[] distributeData(Instances data, int attributeIndex) {
-		Instances[] dataArray = new Instances[data.attribute(attributeIndex).numValues()];
-    	// initializing the data array
-		for(int i = 0; i < dataArray.length; i++){
-			dataArray[i] = new Instances(data, 0);
-		}
-		// iterating over all values for given attributeIndex
-		for(int i = 0; i < dataArray.length; i++) {
-			// adding the correct instances to the correct data set in the data array
-			for(int j = 0; j < data.numInstances(); j++) {
-				if(data.instance(j).value(attributeIndex) == i) {
-					dataArray[i].add(data.instance(j));
-				}
-			}
+	private int[] distributeData(Node current, int attributeIndex) {
+		int[] bounds = new int[trainingData.numValues(attributeIndex) + 1];
+		// counting the rows of each value, then turning the counts into the start of each value's range
+		for(int r = current.start; r < current.end; r++) {
+			bounds[trainingData.value(attributeIndex, rows[r]) + 1]++;
+		}
+		bounds[0] = current.start;
+		for(int i = 1; i < bounds.length; i++) {
+			bounds[i] += bounds[i - 1];
 		}
-		return dataArray;
+		int[] next = bounds.clone();
+		for(int r = current.start; r < current.end; r++) {
+			scratch[next[trainingData.value(attributeIndex, rows[r])]++] = rows[r];
+		}
+		System.arraycopy(scratch, current.start, rows, current.start, current.numInstances());
+		return bounds;
 	}
 
 	/**
-	 * Calculates Gain of the current split
-	 * @param current the current node
- 	 * @param data the current data set
-	 * @param attributeIndex the current attribute
+	 * Counts how many of the node's rows of each class hold each value of the given attribute
+	 * @param current the node
+	 * @param attributeIndex the attribute
+	 * @return the contingency table, indexed by attribute value and then by class value
+	 */
+	private int[][] contingencyTable(Node current, int attributeIndex){
+		int[][] table = new int[trainingData.numValues(attributeIndex)][2];
+		trainingData.countValues(attributeIndex, rows, current.start, current.end, table);
+		return table;
+	}
+
+	/**
+	 * Calculates Gain of a split from its counts
+	 * @param classCounts the number of instances of each class in the current node
+	 * @param table the contingency table of the split attribute (see contingencyTable)
 	 * @param isGini notifies if the calculation is made with Gini or Entropy
 	 * @return the Gain
 	 */
-	private double calcGain(Node current, Instances data, int attributeIndex, boolean isGini){
-		double gain = 0;
+	private double calcGain(int[] classCounts, int[][] table, boolean isGini){
+		int numInstances = classCounts[0] + classCounts[1];
 		// will hold the value of the sigma calculation
 		double sigma = 0;
-		double[] probs = probabilities(data);
+		double[] probs = probabilities(classCounts, numInstances);
 		double[] splitProbs;
-		Instances[] dataArray = distributeData(data, attributeIndex);
-		for(int i = 0; i < data.attribute(attributeIndex).numValues(); i++){
-			// if there is no data distributed to the current slot in the array, continue to the next one.
-			if(dataArray[i].numInstances() == 0){
+		for(int i = 0; i < table.length; i++){
+			int valueInstances = table[i][0] + table[i][1];
+			// if no instance holds the current value, continue to the next one.
+			if(valueInstances == 0){
 				continue;
 			}
-			splitProbs = probabilities(dataArray[i]);
+			splitProbs = probabilities(table[i], valueInstances);
 			// preforms the calculation of temp according to the method Gini/Entropy
 			if(isGini) {
-				sigma += ((double)(dataArray[i].numInstances()) / (double)(data.numInstances())) * calcGini(splitProbs);
+				sigma += ((double)valueInstances / (double)numInstances) * calcGini(splitProbs);
 			}
 			else{
-				sigma += ((double)(dataArray[i].numInstances()) / (double)(data.numInstances())) * calcEntropy(splitProbs);
+				sigma += ((double)valueInstances / (double)numInstances) * calcEntropy(splitProbs);
 			}
 		}
 		// calculates the final return value according to the method Gini/Entropy
@@ -234,27 +404,15 @@ public class DecisionTree implements Classifier {
 	}
 
 	/**
-	 * Creates a set of probabilities for a given data of instances
-	 * @param data the data set
-	 * @return an array with probabilities for the current data set
+	 * Creates a set of probabilities from class counts
+	 * @param counts the number of instances of each class
+	 * @param numInstances the total number of instances
+	 * @return an array with the probability of each class
 	 */
-	private double[] probabilities(Instances data){
-		// initialization of the returned array
-    	double[] probs = new double[2];
-		int index;
+	private double[] probabilities(int[] counts, int numInstances){
+		double[] probs = new double[counts.length];
 		for(int i = 0; i < probs.length; i++){
-			probs[i] = 0;
-		}
-    	// iterate over the instances in the given data
-		for(int i = 0; i < data.numInstances(); i++){
-			// gives the current index the value of the current class attribute (0 or 1)
-			index = (int)data.instance(i).classValue();
-			// increment the amount of 0/1 in the array
-			probs[index]++;
-		}
-		// divide each index in the array by the total number of instances in order to get probability
-		for(int i = 0; i < probs.length; i++){
-			probs[i] /= (double)data.numInstances();
+			probs[i] = (double)counts[i] / (double)numInstances;
 		}
 		return probs;
 	}
@@ -266,11 +424,11 @@ public class DecisionTree implements Classifier {
 	 */
 	private boolean perfectlyClassified(Node current){
 		// set the parameter clas to hold the value of the first instance's classValue
-		int clas = (int) current.currentData.firstInstance().classValue();
+		int clas = trainingData.classValue(rows[current.start]);
 		// iterate over all instances in the current data in order to determine whether the current node is perfectly
 		// classified or not
-		for (int i = 1; i < current.currentData.numInstances(); i++) {
-			if ((int) current.currentData.instance(i).classValue() != clas) {
+		for (int i = current.start + 1; i < current.end; i++) {
+			if (trainingData.classValue(rows[i]) != clas) {
 				return false;
 			}
 		}
@@ -283,7 +441,7 @@ public class DecisionTree implements Classifier {
 	 * @return the correct return value for this node
 	 */
 	private double calcReturnValue(Node current){
-		double[] probs = probabilities(current.currentData);
+		double[] probs = probabilities(countClassification(current), current.numInstances());
 		// in case the majority if 0 returns 0 as the return value
 		if(probs[0] > probs[1]){
 			return 0.0;
@@ -295,38 +453,28 @@ public class DecisionTree implements Classifier {
 
 	/**
 	 * Calculates the chiSquare value
-	 * @param data current data set
+	 * @param current current node
 	 * @param attributeIndex current attribute
 	 * @return chiSquare value
 	 */
-	private double calcChiSquare(Instances data, int attributeIndex){
+	private double calcChiSquare(Node current, int attributeIndex){
 		double chiValue = 0;
-		int[] countArray = countClassification(data);
+		int[] countArray = countClassification(current);
 		// initialize an array to hold the calculation for P(Y=0) and P(Y=1)
 		double[] P = new double[2];
-		P[0] = (double)(countArray[0])/(double)data.numInstances();
-		P[1] = (double)(countArray[1])/(double)data.numInstances();
-		// initialize an array which counts the number of instances that distribute to each of the current attribute's
-		// values
-		Instances[] D = distributeData(data, attributeIndex);
-		// initializing 2 arrays which will contain the amount of instances with class values 0 or 1 respectively for
-		// each value of the current attribute
-		int[] p_f = new int[D.length];
-		int[] n_f = new int[D.length];
-		// calculating the amount of 0 and 1 classes within the current attribute's value (over all values)
-		for(int i = 0; i < D.length; i++){
-			int[] temp = countClassification(D[i]);
-			p_f[i] = temp[0];
-			n_f[i] = temp[1];
-		}
+		P[0] = (double)(countArray[0])/(double)current.numInstances();
+		P[1] = (double)(countArray[1])/(double)current.numInstances();
+		// the amount of instances with class values 0 or 1 respectively for each value of the current attribute
+		int[][] table = contingencyTable(current, attributeIndex);
 		double E0;
 		double E1;
 		// calculating the chiValue according to the given formula
-		for(int i = 0; i < D.length; i++){
-			E0 = (double)D[i].numInstances()*P[0];
-			E1 = (double)D[i].numInstances()*P[1];
+		for(int i = 0; i < table.length; i++){
+			int D_f = table[i][0] + table[i][1];
+			E0 = (double)D_f*P[0];
+			E1 = (double)D_f*P[1];
 			if(E0 != 0 && E1 != 0) {
-				chiValue += ((Math.pow((p_f[i] - E0), 2) / E0) + (Math.pow((n_f[i] - E1), 2) / E1));
+				chiValue += ((Math.pow((table[i][0] - E0), 2) / E0) + (Math.pow((table[i][1] - E1), 2) / E1));
 			}
 		}
 		return chiValue;
@@ -359,6 +507,10 @@ public class DecisionTree implements Classifier {
 	 * @param pValue the value to be pruned according to
 	 */
 	public void prune(Node root, double pValue){
+		if(this.trainingData == null){
+			throw new IllegalStateException("The tree was compiled, its training data is no longer available");
+		}
+		this.scoringTree = null;
 		// initializing a queue in order to inspect all nodes in the given tree
 		Queue<Node> q = new LinkedList<>();
 		int degreeOfFreedom = 0;
@@ -367,7 +519,7 @@ public class DecisionTree implements Classifier {
 		while(!q.isEmpty()){
 			Node current = q.remove();
 			if(current.children != null){
-				double chiSquareValue = calcChiSquare(current.currentData, current.attributeIndex);
+				double chiSquareValue = calcChiSquare(current, current.attributeIndex);
 				int location = findLocationInTable(pValue);
 				degreeOfFreedom = calcDegreeOfFreedom(current);
 				if(chiSquareValue >= chiSquareTable[degreeOfFreedom][location]) {
@@ -394,7 +546,7 @@ public class DecisionTree implements Classifier {
 	private int calcDegreeOfFreedom(Node current){
 		int df = 0;
 		for(int i = 0; i < current.children.length; i++){
-			if(current.children[i].currentData.numInstances() != 0){
+			if(current.children[i].numInstances() != 0){
 				df++;
 			}
 		}
@@ -416,22 +568,14 @@ public class DecisionTree implements Classifier {
 	}
 
 	/**
-	 * Returns an array which holds the number of instance of the given set which hold the class value 0 or 1
-	 * @param data the given data set
+	 * Returns an array which holds the number of instance of the given node which hold the class value 0 or 1
+	 * @param current the given node
 	 * @return
 	 */
-	private int[] countClassification(Instances data){
+	private int[] countClassification(Node current){
 		int[] array = new int[2];
-		// filling the correct values in the array
-		for(int i = 0; i < data.numInstances(); i++){
-			// counts the number of instances which hold the class value 0 or 1 respectively
-			if(data.instance(i).classValue() == 0){
-				array[0]++;
-			}
-			else{
-				array[1]++;
-			}
-		}
+		// counts the number of instances which hold the class value 0 or 1 respectively
+		trainingData.countClasses(rows, current.start, current.end, array);
 		return array;
 	}
 
@@ -441,18 +585,7 @@ public class DecisionTree implements Classifier {
 	 * @return the max tree height
 	 */
 	public int maxTreeHeight(Instances data){
-		int maxHeight = 0;
-		int currentHeight = 0;
-		Node current = this.getRootNode();
-		Node next = new Node();
-		for(int i = 0; i < data.numInstances(); i++){
-			currentHeight = calcHeight(data.instance(i));
-			if(currentHeight > maxHeight){
-				maxHeight = currentHeight;
-			}
-			current = this.getRootNode();
-		}
-		return maxHeight;
+		return score(data).maxDepth();
 	}
 
 	/**
@@ -461,39 +594,7 @@ public class DecisionTree implements Classifier {
 	 * @return the average tree height
 	 */
 	public double avgTreeHeight(Instances data){
-		int sumOfHeights = 0;
-		double avgHeight = 0;
-		for(int i = 0; i < data.numInstances(); i++){
-			sumOfHeights += calcHeight(data.instance(i));
-		}
-		avgHeight = (double)sumOfHeights/(double)data.numInstances();
-		return avgHeight;
-	}
-
-	/**
-	 * Calculates the length of the path a certain instance goes through in order to be classified
-	 * @param instance current instance
-	 * @return the length of its path to classification
-	 */
-	private int calcHeight(Instance instance){
-		int currentHeight = 0;
-		Node current = this.rootNode;
-		Node next = new Node();
-		// traversing the tree
-		while (current.children != null){
-			// determine which is the next node according to the current instance's attribute value
-			next = current.children[(int)instance.value(current.attributeIndex)];
-			// if we have a way to continue traversing the tree
-			if(current.children != null) {
-				current = next;
-				currentHeight++;
-			}
-			// if we stopped at a node with no option to continue traversing we want to stop
-			else{
-				break;
-			}
-		}
-		return currentHeight;
+		return score(data).avgDepth();
 	}
 
 	/**
@@ -522,7 +623,7 @@ public class DecisionTree implements Classifier {
 		if(current.children == null){
 
 			// excluding the leaf nodes which hold no data from the final tree representation
-			if(current.currentData.numInstances() == 0){
+			if(current.numInstances() == 0){
 				str.delete(str.lastIndexOf("\n"), str.length());
 				str.delete(str.lastIndexOf("\n")+1, str.length());
 				return str;
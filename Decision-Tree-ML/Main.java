@@ -63,11 +63,13 @@ public class MainHW2 {
 			giniTree.buildTree(trainingCancer, true);
 			System.out.println("Decision Tree with p_value of: " + pValuesArray[i]);
 			giniTree.prune(giniTree.getRootNode(), pValuesArray[i]);
-			currentError = giniTree.calcAvgError(validationCancer);
+			// one pass over the validation data gives its error and heights together
+			CompiledTree.Scores validationScores = giniTree.score(validationCancer);
+			currentError = validationScores.errorRate();
 			currentTrainError = giniTree.calcAvgError(trainingCancer);
 			System.out.println("The train error of the decision tree is: " + currentTrainError);
-			System.out.println("Max height on validation data: " + giniTree.maxTreeHeight(validationCancer));
-			System.out.println("Average height on validation data: " + giniTree.avgTreeHeight(validationCancer));
+			System.out.println("Max height on validation data: " + validationScores.maxDepth());
+			System.out.println("Average height on validation data: " + validationScores.avgDepth());
 			System.out.println("The validation error of the decision tree is: " + currentError);
 			if(currentError < bestError){
 				bestError = currentError;
@@ -78,6 +80,8 @@ public class MainHW2 {
 		System.out.println("Best Validation error at p_value: " + bestP);
 		giniTree.buildTree(trainingCancer, true);
 		giniTree.prune(giniTree.getRootNode(), bestP);
+		// the final tree only classifies from here on
+		giniTree.compile();
 		double testError = giniTree.calcAvgError(testingCancer);
 		System.out.println("Test error with best tree: " + testError);
 		giniTree.printTree();
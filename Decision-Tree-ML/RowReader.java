@@ -0,0 +1,139 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import weka.core.Instances;
+
+/**
+ * Reads the rows of an ARFF or CSV file one at a time and codes their nominal values the way Weka does, without
+ * building an Instances object, so reading takes constant memory whatever the size of the file (scoring it does too
+ * with CompiledTree.score(in, false), which keeps no predictions).
+ * The attributes and their values come from a header data set (e.g. the training data, or new Instances(data, 0)).
+ * An ARFF file is recognized by its '@' declarations, which are skipped up to @data; a CSV file must start with a
+ * line of column names and list the attributes in the header's order. Missing values ('?') of attributes read as
+ * code 0, like Weka's missing value cast to int, and a missing class reads as -1.
+ */
+public class RowReader implements Closeable {
+	private final Instances header;
+	private final BufferedReader in;
+	private boolean started;
+	private int lineNumber;
+
+	/**
+	 * @param header a data set with the attributes of the rows, the class index set
+	 * @param in the file to read
+	 */
+	public RowReader(Instances header, Reader in){
+		this.header = header;
+		this.in = in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in);
+	}
+
+	public int numAttributes(){
+		return header.numAttributes();
+	}
+
+	public int classIndex(){
+		return header.classIndex();
+	}
+
+	/**
+	 * Reads the next row
+	 * @param features filled with the value code of each attribute, the class attribute included
+	 * @return false at the end of the file
+	 * @throws IOException if the file cannot be read or the row does not fit the header
+	 */
+	public boolean next(int[] features) throws IOException {
+		String line = nextLine();
+		if(line != null && !started){
+			started = true;
+			if(line.startsWith("@")){
+				// skipping the ARFF declarations up to the data section
+				while(line != null && !line.regionMatches(true, 0, "@data", 0, 5)){
+					line = nextLine();
+				}
+			}
+			// the CSV line of column names, or the @data line
+			line = nextLine();
+		}
+		if(line == null){
+			return false;
+		}
+		int attributeIndex = 0;
+		int i = 0;
+		while(i <= line.length()){
+			if(attributeIndex == features.length){
+				throw new IOException("Line " + lineNumber + ": more than " + features.length + " values");
+			}
+			while(i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')){
+				i++;
+			}
+			// reading one value, quoted or not
+			int start;
+			int end;
+			if(i < line.length() && (line.charAt(i) == '\'' || line.charAt(i) == '"')){
+				char quote = line.charAt(i);
+				start = i + 1;
+				end = line.indexOf(quote, start);
+				if(end < 0){
+					throw new IOException("Line " + lineNumber + ": unterminated quote");
+				}
+				i = line.indexOf(',', end);
+			}
+			else{
+				start = i;
+				i = line.indexOf(',', i);
+				end = i < 0 ? line.length() : i;
+			}
+			features[attributeIndex] = code(attributeIndex, line.substring(start, end).trim());
+			attributeIndex++;
+			if(i < 0){
+				break;
+			}
+			i++;
+		}
+		if(attributeIndex != features.length){
+			throw new IOException("Line " + lineNumber + ": " + attributeIndex + " values instead of " + features.length);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the code of a value of an attribute
+	 * @param attributeIndex the attribute
+	 * @param value the value as written in the file
+	 * @return the value's index among the attribute's values
+	 * @throws IOException if the attribute has no such value
+	 */
+	private int code(int attributeIndex, String value) throws IOException {
+		if(value.equals("?")){
+			return attributeIndex == header.classIndex() ? -1 : 0;
+		}
+		int code = header.attribute(attributeIndex).indexOfValue(value);
+		if(code < 0){
+			throw new IOException("Line " + lineNumber + ": unknown value '" + value + "' of attribute "
+					+ header.attribute(attributeIndex).name());
+		}
+		return code;
+	}
+
+	/**
+	 * @return the next line holding something other than blanks or a '%' comment, trimmed, or null at the end
+	 */
+	private String nextLine() throws IOException {
+		String line;
+		while((line = in.readLine()) != null){
+			lineNumber++;
+			line = line.trim();
+			if(!line.isEmpty() && !line.startsWith("%")){
+				return line;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
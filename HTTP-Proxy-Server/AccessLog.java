@@ -0,0 +1,213 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous access log of the proxy.
+// Connection threads publish records into a lock-free multi-producer ring buffer and return immediately;
+// one background thread drains the ring in batches and writes them to stderr or to a size-rotated file.
+// When the ring is full a record is either dropped (and counted) or the producer waits for room.
+public class AccessLog {
+    // one line of the log: either a free-form message or the summary of a finished tunnel
+    static final class Record {
+        final long time_millis = System.currentTimeMillis();
+        final String message;
+        final String client;
+        final String destination;
+        final long bytes_up;
+        final long bytes_down;
+        final long duration_ms;
+        final String outcome;
+
+        Record(String message, String client, String destination, long bytes_up, long bytes_down,
+               long duration_ms, String outcome) {
+            this.message = message;
+            this.client = client;
+            this.destination = destination;
+            this.bytes_up = bytes_up;
+            this.bytes_down = bytes_down;
+            this.duration_ms = duration_ms;
+            this.outcome = outcome;
+        }
+
+        void appendTo(StringBuilder out) {
+            out.append(Instant.ofEpochMilli(time_millis)).append(' ');
+            if (message != null) {
+                out.append(message);
+            } else {
+                out.append("tunnel client=").append(client)
+                        .append(" destination=").append(destination)
+                        .append(" bytes_up=").append(bytes_up)
+                        .append(" bytes_down=").append(bytes_down)
+                        .append(" duration_ms=").append(duration_ms)
+                        .append(" outcome=").append(outcome);
+            }
+            out.append('\n');
+        }
+    }
+
+    private static final int BATCH = 256;
+
+    private final AtomicReferenceArray<Record> ring;
+    private final int mask;
+    // next sequence to claim by producers, next sequence to read by the writer
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final boolean block_when_full;
+    // every record dropped since startup; the writer logs what it has not reported yet
+    private final AtomicLong dropped = new AtomicLong();
+    private long dropped_reported;
+
+    private final Path path;
+    private final long max_file_bytes;
+    private final int max_files;
+    private OutputStream out;
+    private long file_bytes;
+
+    // path == null writes to stderr; capacity is rounded up to a power of two
+    public AccessLog(int capacity, boolean block_when_full, Path path, long max_file_bytes, int max_files)
+            throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.block_when_full = block_when_full;
+        this.path = path;
+        this.max_file_bytes = max_file_bytes;
+        this.max_files = max_files;
+        openFile();
+        Thread writer = new Thread(this::drain, "sockspy-access-log");
+        writer.setDaemon(true);
+        writer.start();
+        // whatever is still queued when the proxy stops is written out
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushRemaining));
+    }
+
+    public void message(String message) {
+        publish(new Record(message, null, null, 0, 0, 0, null));
+    }
+
+    public void tunnel(String client, String destination, long bytes_up, long bytes_down, long duration_ms,
+                       String outcome) {
+        publish(new Record(null, client, destination, bytes_up, bytes_down, duration_ms, outcome));
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void publish(Record record) {
+        while (true) {
+            long seq = tail.get();
+            if (seq - head >= ring.length()) {
+                if (!block_when_full) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(50_000);
+                continue;
+            }
+            if (tail.compareAndSet(seq, seq + 1)) {
+                // the slot is free since head has passed it, the writer waits until the record shows up
+                ring.lazySet((int) seq & mask, record);
+                return;
+            }
+        }
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder(BATCH * 128);
+        while (true) {
+            if (drainOnce(batch) == 0) {
+                LockSupport.parkNanos(2_000_000);
+            }
+        }
+    }
+
+    // the writer thread and the shutdown hook both consume, the lock keeps them from interleaving
+    private synchronized int drainOnce(StringBuilder batch) {
+        int n = takeBatch(batch);
+        if (n > 0) {
+            write(batch);
+        }
+        return n;
+    }
+
+    // moves up to BATCH published records into the builder, in sequence order
+    private int takeBatch(StringBuilder batch) {
+        batch.setLength(0);
+        int n = 0;
+        long seq = head;
+        while (n < BATCH && seq < tail.get()) {
+            int slot = (int) seq & mask;
+            Record record = ring.get(slot);
+            if (record == null) {
+                // claimed but not yet stored by its producer
+                break;
+            }
+            ring.lazySet(slot, null);
+            record.appendTo(batch);
+            seq++;
+            n++;
+            head = seq;
+        }
+        return n;
+    }
+
+    private void write(StringBuilder batch) {
+        try {
+            long skipped = dropped.get() - dropped_reported;
+            dropped_reported += skipped;
+            if (skipped > 0) {
+                batch.append(Instant.now()).append(" access log full, dropped ").append(skipped).append(" records\n");
+            }
+            byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            if (path != null && file_bytes + bytes.length > max_file_bytes && file_bytes > 0) {
+                rotate();
+            }
+            out.write(bytes);
+            out.flush();
+            file_bytes += bytes.length;
+        } catch (IOException e) {
+            // nowhere left to report it but the console
+            System.err.println("access log write failed: " + e.getMessage());
+        }
+    }
+
+    private void flushRemaining() {
+        StringBuilder batch = new StringBuilder();
+        while (drainOnce(batch) > 0) {
+            // keep going until the ring is empty
+        }
+    }
+
+    // log -> log.1 -> log.2 ..., the oldest file beyond max_files is deleted
+    private void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(Paths.get(path + "." + max_files));
+        for (int i = max_files - 1; i >= 1; i--) {
+            Path from = Paths.get(path + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        if (path == null) {
+            out = System.err;
+            return;
+        }
+        file_bytes = Files.exists(path) ? Files.size(path) : 0;
+        out = new FileOutputStream(path.toFile(), true);
+    }
+}
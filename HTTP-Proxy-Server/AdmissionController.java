@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides which accepted connections get a handler, for the thread-per-connection engines.
+// Up to max_active tunnels run at once. Beyond that, a connection waits in a bounded queue for at most
+// queue_timeout_ms. Waiting connections are grouped by client IP and the groups take turns, so one busy
+// client cannot starve the others. No client runs more than max_per_client tunnels at once or has more
+// than max_per_client connections waiting.
+// The time connections spent queued is averaged, and the average decays while nothing is queued. While it is
+// above shed_target_ms the queue is not keeping up, and new connections are turned away at once instead of
+// waiting for a slot they would not get in time. A connection that is turned away gets the SOCKS failure
+// reply of the protocol it speaks rather than a reset; its version byte is polled for, so a slow client
+// does not hold up the refusals behind it.
+public class AdmissionController {
+    // weight of one new sample in the queue wait average
+    static final double WAIT_ALPHA = 0.1;
+    // how long a refused client may take to send its version byte, and how often it is checked for
+    static final int REJECT_READ_TIMEOUT_MS = 200;
+    static final int REJECT_POLL_MS = 10;
+    // refused connections waiting for their version byte; beyond this they are just closed
+    static final int MAX_PENDING_REFUSALS = 1024;
+
+    // a connection waiting for a slot
+    static final class Waiter {
+        final Socket client;
+        final Runnable handler;
+        final long enqueued = System.currentTimeMillis();
+
+        Waiter(Socket client, Runnable handler) {
+            this.client = client;
+            this.handler = handler;
+        }
+    }
+
+    // what one client IP holds: running tunnels and queued connections
+    static final class Share {
+        int active;
+        int queued;
+    }
+
+    private final int max_active;
+    private final int max_per_client;
+    private final int queue_capacity;
+    private final long queue_timeout_ms;
+    private final long shed_target_ms;
+    private final Executor executor;
+    private final ProxyMetrics metrics;
+    private final AccessLog log;
+    // expires waiters and answers refusals
+    private final ScheduledExecutorService timer;
+
+    // guarded by this
+    private int active;
+    private int queued;
+    private final Map<InetAddress, Share> shares = new HashMap<>();
+    // queued connections per client, in the order the clients take turns
+    private final LinkedHashMap<InetAddress, ArrayDeque<Waiter>> waiting = new LinkedHashMap<>();
+    private double wait_average_ms;
+
+    private final AtomicInteger pending_refusals = new AtomicInteger();
+
+    final LongAdder queued_total = new LongAdder();
+    final LongAdder timed_out = new LongAdder();
+    final LongAdder shed = new LongAdder();
+    final LongAdder client_limited = new LongAdder();
+
+    public AdmissionController(int max_active, int max_per_client, int queue_capacity, long queue_timeout_ms,
+                               long shed_target_ms, Executor executor, ProxyMetrics metrics, AccessLog log) {
+        this.max_active = max_active;
+        this.max_per_client = max_per_client;
+        this.queue_capacity = queue_capacity;
+        this.queue_timeout_ms = queue_timeout_ms;
+        this.shed_target_ms = shed_target_ms;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.log = log;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sockspy-admission");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(5, queue_timeout_ms / 10);
+        timer.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // runs the handler now, queues it, or refuses the connection; never blocks the accept thread
+    public void submit(Socket client, Runnable handler) {
+        InetAddress ip = client.getInetAddress();
+        String refusal;
+        synchronized (this) {
+            Share share = shares.computeIfAbsent(ip, a -> new Share());
+            if (active < max_active && share.queued == 0 && share.active < max_per_client) {
+                active++;
+                share.active++;
+                sample(0);
+                refusal = null;
+            } else if (share.queued >= max_per_client) {
+                client_limited.increment();
+                refusal = "client " + ip.getHostAddress() + " already has " + max_per_client + " connections waiting";
+            } else if (wait_average_ms > shed_target_ms) {
+                shed.increment();
+                refusal = "queued connections wait " + (long) wait_average_ms + " ms on average, shedding load";
+            } else if (queued >= queue_capacity) {
+                refusal = "Active connections count reached capacity and the queue is full";
+            } else {
+                share.queued++;
+                queued++;
+                queued_total.increment();
+                waiting.computeIfAbsent(ip, a -> new ArrayDeque<>()).addLast(new Waiter(client, handler));
+                return;
+            }
+            if (refusal != null) {
+                forget(ip, share);
+            }
+        }
+        if (refusal != null) {
+            refuse(client, refusal);
+        } else {
+            dispatch(client, handler);
+        }
+    }
+
+    private void dispatch(Socket client, Runnable handler) {
+        InetAddress ip = client.getInetAddress();
+        try {
+            executor.execute(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    finished(ip);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished(ip);
+            refuse(client, "executor rejected the connection");
+        }
+    }
+
+    // a tunnel ended: its slot goes to the next client in turn
+    private void finished(InetAddress ip) {
+        Waiter next;
+        synchronized (this) {
+            active--;
+            Share share = shares.get(ip);
+            share.active--;
+            forget(ip, share);
+            next = next();
+            if (next != null) {
+                active++;
+                shares.get(next.client.getInetAddress()).active++;
+            }
+        }
+        if (next != null) {
+            dispatch(next.client, next.handler);
+        }
+    }
+
+    // takes the oldest connection of the first client in turn that is below its limit, that client then
+    // moves to the back
+    private Waiter next() {
+        Iterator<Map.Entry<InetAddress, ArrayDeque<Waiter>>> it = waiting.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<InetAddress, ArrayDeque<Waiter>> turn = it.next();
+            Share share = shares.get(turn.getKey());
+            if (share.active >= max_per_client) {
+                continue;
+            }
+            it.remove();
+            ArrayDeque<Waiter> line = turn.getValue();
+            Waiter waiter = line.pollFirst();
+            if (!line.isEmpty()) {
+                waiting.put(turn.getKey(), line);
+            }
+            queued--;
+            share.queued--;
+            sample(System.currentTimeMillis() - waiter.enqueued);
+            return waiter;
+        }
+        return null;
+    }
+
+    // refuses whoever waited past the deadline
+    private void expire() {
+        long oldest_allowed = System.currentTimeMillis() - queue_timeout_ms;
+        ArrayDeque<Waiter> expired = new ArrayDeque<>();
+        synchronized (this) {
+            if (queued == 0) {
+                // nobody waits, so shedding (which admits nobody) cannot keep the average up by itself
+                sample(0);
+            }
+            Iterator<Map.Entry<InetAddress, ArrayDeque<Waiter>>> it = waiting.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<InetAddress, ArrayDeque<Waiter>> entry = it.next();
+                ArrayDeque<Waiter> line = entry.getValue();
+                Share share = shares.get(entry.getKey());
+                while (!line.isEmpty() && line.peekFirst().enqueued < oldest_allowed) {
+                    Waiter waiter = line.pollFirst();
+                    queued--;
+                    share.queued--;
+                    sample(queue_timeout_ms);
+                    expired.add(waiter);
+                }
+                if (line.isEmpty()) {
+                    it.remove();
+                }
+                forget(entry.getKey(), share);
+            }
+        }
+        for (Waiter waiter : expired) {
+            timed_out.increment();
+            refuse(waiter.client, "waited " + queue_timeout_ms + " ms for a free connection");
+        }
+    }
+
+    private void sample(long wait_ms) {
+        wait_average_ms += WAIT_ALPHA * (wait_ms - wait_average_ms);
+    }
+
+    private void forget(InetAddress ip, Share share) {
+        if (share.active == 0 && share.queued == 0) {
+            shares.remove(ip);
+        }
+    }
+
+    // answers with the failure reply of the client's protocol: 00 5B for socks4, "no acceptable methods"
+    // for socks5, then closes
+    private void refuse(Socket client, String reason) {
+        metrics.refused.increment();
+        log.message("Refused connection " + client.getInetAddress().getHostAddress() + ":" + client.getPort()
+                + ": " + reason);
+        if (pending_refusals.incrementAndGet() > MAX_PENDING_REFUSALS) {
+            pending_refusals.decrementAndGet();
+            closeQuietly(client);
+            return;
+        }
+        long give_up_at = System.currentTimeMillis() + REJECT_READ_TIMEOUT_MS;
+        try {
+            timer.execute(() -> answer(client, give_up_at));
+        } catch (RejectedExecutionException e) {
+            pending_refusals.decrementAndGet();
+            closeQuietly(client);
+        }
+    }
+
+    // writes the failure reply once the version byte has arrived, checking again later rather than blocking in
+    // read(); the reply fits in the empty send buffer, so neither the write nor the close waits
+    private void answer(Socket client, long give_up_at) {
+        try {
+            InputStream in = client.getInputStream();
+            if (in.available() == 0 && System.currentTimeMillis() < give_up_at) {
+                timer.schedule(() -> answer(client, give_up_at), REJECT_POLL_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (in.available() > 0) {
+                OutputStream out = client.getOutputStream();
+                int version = in.read();
+                if (version == 4) {
+                    out.write(new byte[]{0x00, 0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+                } else if (version == 5) {
+                    out.write(new byte[]{0x05, (byte) Socks5Handshake.NO_ACCEPTABLE_METHODS});
+                }
+                out.flush();
+            }
+        } catch (IOException | RejectedExecutionException ignored) {
+            // the client went away or never spoke, it is closed either way
+        }
+        pending_refusals.decrementAndGet();
+        closeQuietly(client);
+    }
+
+    private static void closeQuietly(Socket client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public synchronized int active() {
+        return active;
+    }
+
+    public synchronized int queued() {
+        return queued;
+    }
+
+    public synchronized long waitAverageMs() {
+        return (long) wait_average_ms;
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Recycles fixed-size buffers between tunnels so relaying does not allocate once the pool is warm.
+// Released buffers go to a small cache picked by the releasing thread's id, and from there to a shared
+// queue when that cache is full; acquire() looks in the same places before allocating. All pools of the
+// proxy draw from one Budget, beyond which acquire() fails instead of growing the heap or native memory.
+// Every buffer the pool allocates is tracked through a weak reference. Pooled buffers stay reachable, so one
+// that is garbage collected was leased and never released: it is reported in the access log and its memory
+// is returned to the budget. A sample of the leases also records where the buffer was acquired, and a buffer
+// released twice (or one from elsewhere) is reported and not pooled again.
+public class BufferPool {
+    // stripes of the thread caches and buffers each of them holds
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+    static final int STRIPE_CAPACITY = 8;
+
+    // the memory cap shared by all pools
+    static final class Budget {
+        final long max_bytes;
+        final AtomicLong used = new AtomicLong();
+
+        Budget(long max_bytes) {
+            this.max_bytes = max_bytes;
+        }
+
+        boolean reserve(long bytes) {
+            while (true) {
+                long current = used.get();
+                if (current + bytes > max_bytes) {
+                    return false;
+                }
+                if (used.compareAndSet(current, current + bytes)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    // a few buffers kept close to the threads that hash to this stripe
+    private static final class Stripe {
+        final ByteBuffer[] buffers = new ByteBuffer[STRIPE_CAPACITY];
+        int count;
+
+        synchronized ByteBuffer pop() {
+            return count == 0 ? null : buffers[--count];
+        }
+
+        synchronized boolean push(ByteBuffer buf) {
+            if (count == buffers.length) {
+                return false;
+            }
+            buffers[count++] = buf;
+            return true;
+        }
+    }
+
+    // the tracking of one allocated buffer; equal to a Probe for the same buffer so acquire() and release()
+    // can find it without allocating
+    private static final class Lease extends WeakReference<ByteBuffer> {
+        final int hash;
+        final AtomicBoolean leased = new AtomicBoolean();
+        // set on sampled acquires only
+        volatile Throwable acquired_at;
+
+        Lease(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue) {
+            super(buf, queue);
+            this.hash = System.identityHashCode(buf);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            ByteBuffer buf = get();
+            return buf != null && (o instanceof Probe ? ((Probe) o).buf == buf
+                    : o instanceof Lease && ((Lease) o).get() == buf);
+        }
+    }
+
+    // lookup key for the lease of a buffer, reused per thread
+    private static final class Probe {
+        ByteBuffer buf;
+
+        public int hashCode() {
+            return System.identityHashCode(buf);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Lease && ((Lease) o).get() == buf;
+        }
+    }
+
+    private final String name;
+    private final int buffer_size;
+    private final boolean direct;
+    private final Budget budget;
+    // one lease in leak_sample records where it was acquired, 0 records none
+    private final int leak_sample;
+    private final AccessLog log;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ArrayBlockingQueue<ByteBuffer> shared;
+    private final ConcurrentHashMap<Object, Lease> leases = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    private final ThreadLocal<Probe> probes = ThreadLocal.withInitial(Probe::new);
+
+    final LongAdder acquired = new LongAdder();
+    final LongAdder allocated = new LongAdder();
+    final LongAdder exhausted = new LongAdder();
+    final LongAdder leaked = new LongAdder();
+    final LongAdder double_releases = new LongAdder();
+
+    public BufferPool(String name, int buffer_size, boolean direct, Budget budget, int leak_sample, AccessLog log) {
+        this.name = name;
+        this.buffer_size = buffer_size;
+        this.direct = direct;
+        this.budget = budget;
+        this.leak_sample = leak_sample;
+        this.log = log;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        // room for every buffer the budget allows, so a release never has to drop one
+        this.shared = new ArrayBlockingQueue<>((int) Math.max(1, Math.min(Integer.MAX_VALUE, budget.max_bytes / buffer_size)));
+    }
+
+    // a cleared buffer of buffer_size bytes; fails when the budget is spent
+    public ByteBuffer acquire() throws IOException {
+        acquired.increment();
+        Stripe stripe = stripe();
+        ByteBuffer buf = stripe.pop();
+        if (buf == null) {
+            buf = shared.poll();
+        }
+        if (buf == null) {
+            buf = allocate();
+        }
+        Lease lease = lease(buf);
+        lease.leased.set(true);
+        lease.acquired_at = leak_sample > 0 && ThreadLocalRandom.current().nextInt(leak_sample) == 0
+                ? new Throwable("acquired here") : null;
+        return buf;
+    }
+
+    private ByteBuffer allocate() throws IOException {
+        if (!budget.reserve(buffer_size)) {
+            // leaked buffers that have been collected give their share back
+            reclaimLeaks();
+            if (!budget.reserve(buffer_size)) {
+                exhausted.increment();
+                throw new IOException("buffer memory limit of " + budget.max_bytes + " bytes reached");
+            }
+        }
+        allocated.increment();
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+        Lease lease = new Lease(buf, collected);
+        leases.put(lease, lease);
+        return buf;
+    }
+
+    private Lease lease(ByteBuffer buf) {
+        Probe probe = probes.get();
+        probe.buf = buf;
+        Lease lease = leases.get(probe);
+        probe.buf = null;
+        return lease;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        Lease lease = lease(buf);
+        if (lease == null || !lease.leased.compareAndSet(true, false)) {
+            // pooling it again would hand the same buffer to two tunnels
+            double_releases.increment();
+            log.message("Buffer released twice: a " + name + " buffer that is not leased was released, "
+                    + describe("released at", new Throwable()));
+            return;
+        }
+        buf.clear();
+        if (!stripe().push(buf)) {
+            shared.offer(buf);
+        }
+        reclaimLeaks();
+    }
+
+    private Stripe stripe() {
+        return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    private void reclaimLeaks() {
+        Object ref;
+        while ((ref = collected.poll()) != null) {
+            Lease lease = (Lease) ref;
+            if (leases.remove(lease) != null) {
+                leaked.increment();
+                budget.used.addAndGet(-buffer_size);
+                Throwable acquired_at = lease.acquired_at;
+                log.message("Buffer leak: a " + name + " buffer was garbage collected without being released, "
+                        + (acquired_at == null ? "lease not sampled" : describe("acquired at", acquired_at)));
+            }
+        }
+    }
+
+    private static String describe(String what, Throwable trace) {
+        StringBuilder out = new StringBuilder(what);
+        StackTraceElement[] frames = trace.getStackTrace();
+        // the first frame is inside the pool
+        for (int i = 1; i < Math.min(frames.length, 7); i++) {
+            out.append(' ').append(frames[i]);
+        }
+        return out.toString();
+    }
+
+    public int bufferSize() {
+        return buffer_size;
+    }
+
+    // buffers waiting for reuse in the shared queue (the thread caches are not counted)
+    public int idle() {
+        return shared.size();
+    }
+}
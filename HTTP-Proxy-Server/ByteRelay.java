@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Full-duplex byte relay used by the raw mode of Sockspy.ConnectionHandler.
+// Each direction is a pump that copies whatever arrives into the other socket without decoding it, so any
+// protocol (TLS, WebSockets, keep-alive HTTP) passes through untouched. When both sockets were created from
+// channels the pumps move bytes through a direct ByteBuffer and skip the heap copy of the stream path.
+// Pump buffers are borrowed from the proxy's buffer pools for the duration of the relay, every chunk is
+// paced by the tunnel's Shaper flow before it is written on and counts as traffic for its idle deadline.
+public class ByteRelay {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Socket client;
+    private final Socket upstream;
+    // direct buffers for the channel path, heap buffers for the stream path
+    private final BufferPool direct_buffers;
+    private final BufferPool heap_buffers;
+    private final Shaper.Flow flow;
+    private final TunnelDeadlines deadlines;
+    // runs the upstream -> client pump while the handler thread pumps client -> upstream
+    private final Executor pumps;
+    private volatile long bytes_to_upstream;
+    private volatile long bytes_to_client;
+
+    public ByteRelay(Socket client, Socket upstream, BufferPool direct_buffers, BufferPool heap_buffers,
+                     Shaper.Flow flow, TunnelDeadlines deadlines, Executor pumps) {
+        this.client = client;
+        this.upstream = upstream;
+        this.direct_buffers = direct_buffers;
+        this.heap_buffers = heap_buffers;
+        this.flow = flow;
+        this.deadlines = deadlines;
+        this.pumps = pumps;
+    }
+
+    // relays until both directions reached EOF or one of the sockets failed
+    public void run() throws IOException {
+        // joining a CompletableFuture parks the handler without holding a monitor, so a virtual handler
+        // thread does not pin its carrier while it waits
+        CompletableFuture<Void> downstream = CompletableFuture.runAsync(new Pump(upstream, client), pumps);
+        try {
+            bytes_to_upstream = new Pump(client, upstream).transfer();
+        } catch (IOException e) {
+            // a broken client side ends the whole tunnel
+            upstream.close();
+            throw e;
+        } finally {
+            downstream.join();
+        }
+    }
+
+    public long bytesToUpstream() {
+        return bytes_to_upstream;
+    }
+
+    public long bytesToClient() {
+        return bytes_to_client;
+    }
+
+    final class Pump implements Runnable {
+        private final Socket from;
+        private final Socket to;
+
+        Pump(Socket from, Socket to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public void run() {
+            try {
+                bytes_to_client = transfer();
+            } catch (IOException e) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        // copies until EOF, then half-closes the destination so the peer sees the end of the stream
+        long transfer() throws IOException {
+            long total;
+            SocketChannel in = from.getChannel();
+            SocketChannel out = to.getChannel();
+            if (in != null && out != null) {
+                total = transferChannels(in, out);
+            } else {
+                total = transferStreams(from.getInputStream(), to.getOutputStream());
+            }
+            if (!to.isClosed() && !to.isOutputShutdown()) {
+                to.shutdownOutput();
+            }
+            return total;
+        }
+
+        private long transferChannels(SocketChannel in, SocketChannel out) throws IOException {
+            ByteBuffer buf = direct_buffers.acquire();
+            long total = 0;
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    flow.pace(n);
+                    buf.flip();
+                    deadlines.touch();
+                    while (buf.hasRemaining()) {
+                        total += out.write(buf);
+                    }
+                    buf.clear();
+                }
+            } finally {
+                direct_buffers.release(buf);
+            }
+            return total;
+        }
+
+        private long transferStreams(InputStream in, OutputStream out) throws IOException {
+            ByteBuffer pooled = heap_buffers.acquire();
+            byte[] buf = pooled.array();
+            long total = 0;
+            int n;
+            try {
+                while ((n = in.read(buf)) >= 0) {
+                    flow.pace(n);
+                    deadlines.touch();
+                    out.write(buf, 0, n);
+                    out.flush();
+                    total += n;
+                }
+            } finally {
+                heap_buffers.release(pooled);
+            }
+            return total;
+        }
+    }
+}
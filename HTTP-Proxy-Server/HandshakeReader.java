@@ -0,0 +1,128 @@
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+// Buffered reads of the SOCKS handshake from a blocking client socket.
+// Every read pulls whatever the client already sent into one buffer, so a greeting or a request that
+// arrives in a single segment costs a single read() however many fields it has. Bytes the client sent
+// past the handshake stay buffered and are handed on through remaining() or drainTo(). The buffer comes
+// from a BufferPool when one is given, release() gives it back once the connection is over.
+public class HandshakeReader {
+    // a SOCKS4a request or a SOCKS5 username/password message, the longest ones, are about 520 bytes
+    static final int BUFFER_SIZE = 1024;
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+
+    public HandshakeReader(InputStream in) {
+        this.in = in;
+        this.pool = null;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buf = buffer.array();
+    }
+
+    // pool must hand out heap buffers of BUFFER_SIZE bytes
+    public HandshakeReader(InputStream in, BufferPool pool) throws IOException {
+        this.in = in;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+        this.buf = buffer.array();
+    }
+
+    // makes sure at least n unread bytes are buffered
+    public void require(int n) throws IOException {
+        if (n > buf.length) {
+            throw new IOException("handshake message larger than " + buf.length + " bytes");
+        }
+        if (limit - pos >= n) {
+            return;
+        }
+        if (pos + n > buf.length) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit - pos < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                throw new EOFException("connection closed during the handshake");
+            }
+            limit += read;
+        }
+    }
+
+    // the unread byte at offset i without consuming anything
+    public int peek(int i) throws IOException {
+        require(i + 1);
+        return buf[pos + i] & 0xff;
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buf[pos++] & 0xff;
+    }
+
+    public int readShort() throws IOException {
+        require(2);
+        int value = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+        pos += 2;
+        return value;
+    }
+
+    public byte[] readBytes(int n) throws IOException {
+        require(n);
+        byte[] bytes = new byte[n];
+        System.arraycopy(buf, pos, bytes, 0, n);
+        pos += n;
+        return bytes;
+    }
+
+    // parses a SOCKS4/4a request in place, reading until all of it is buffered
+    public void decode(Socks4Decoder decoder) throws IOException {
+        while (true) {
+            int n = decoder.decode(buffer, pos, limit - pos);
+            if (n > 0) {
+                pos += n;
+                return;
+            }
+            require(limit - pos + 1);
+        }
+    }
+
+    public int buffered() {
+        return limit - pos;
+    }
+
+    // the rest of the client stream: what is still buffered here followed by the socket itself
+    public InputStream remaining() {
+        if (pos == limit) {
+            return in;
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(buf, pos, limit - pos), in);
+    }
+
+    // forwards the buffered bytes, for relays that go on reading the socket directly
+    public int drainTo(OutputStream out) throws IOException {
+        int n = limit - pos;
+        out.write(buf, pos, n);
+        out.flush();
+        pos = limit;
+        return n;
+    }
+
+    // returns the buffer to the pool; nothing may read from this reader or from remaining() afterwards
+    public void release() {
+        if (pool != null && buffer != null) {
+            pool.release(buffer);
+        }
+        buffer = null;
+    }
+}
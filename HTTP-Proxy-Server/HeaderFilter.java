@@ -0,0 +1,8 @@
+// One stage of the request header inspection of the HTTP engines.
+// A filter runs on the connection thread right before the request is forwarded and sees the head as a view
+// over the bytes received, so it should only compare bytes in place. Anything slower (decoding, logging,
+// lookups) goes to chain.offload() with copies of just the ranges it needs, because the head's buffer is
+// reused for the next request.
+interface HeaderFilter {
+    void inspect(HttpHead request, HeaderFilterChain chain);
+}
@@ -0,0 +1,68 @@
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// The header filters every forwarded request passes, in the order they were configured.
+// Filters only look at the head in place; the analyses they offload run on a few worker threads behind a
+// bounded queue, and an analysis that does not fit is dropped and counted instead of making the
+// connection wait, so forwarding costs the same however many inspectors are enabled. An empty chain has no
+// workers and is skipped by the callers.
+public class HeaderFilterChain {
+    private final HeaderFilter[] filters;
+    // null when there are no filters
+    private final ThreadPoolExecutor workers;
+    private final AccessLog log;
+
+    final LongAdder offloaded = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    public HeaderFilterChain(List<HeaderFilter> filters, int worker_threads, int queue_capacity, AccessLog log) {
+        this.filters = filters.toArray(new HeaderFilter[0]);
+        this.log = log;
+        if (this.filters.length == 0) {
+            this.workers = null;
+            return;
+        }
+        int threads = Math.max(1, worker_threads);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue_capacity)), r -> {
+            Thread t = new Thread(r, "sockspy-inspector");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void inspect(HttpHead request) {
+        for (HeaderFilter filter : filters) {
+            filter.inspect(request, this);
+        }
+    }
+
+    // runs analysis on a worker thread, or drops it when the queue is full
+    public void offload(Runnable analysis) {
+        try {
+            workers.execute(() -> {
+                try {
+                    analysis.run();
+                } catch (RuntimeException e) {
+                    log.message("Header inspection failed: " + e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+            return;
+        }
+        offloaded.increment();
+    }
+
+    public boolean isEmpty() {
+        return filters.length == 0;
+    }
+
+    public int queued() {
+        return workers == null ? 0 : workers.getQueue().size();
+    }
+}
@@ -0,0 +1,22 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Resolves SOCKS4a hostnames without tying up the connection thread.
+// The proxy only depends on this interface, so a stub returning fixed addresses can replace the system
+// resolver when the proxy runs against a local test setup.
+public interface HostResolver {
+    CompletableFuture<InetAddress[]> resolve(String host_name);
+
+    // the platform resolver, run on the given executor since InetAddress lookups block
+    static HostResolver system(Executor executor) {
+        return host_name -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return InetAddress.getAllByName(host_name);
+            } catch (UnknownHostException e) {
+                throw new java.util.concurrent.CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,536 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shared cache of GET responses for the HTTP exchanges Sockspy forwards, keyed on the SOCKS destination,
+// the Host header and the request target.
+// Only complete 200 responses framed by Content-Length are stored, and only when neither side forbids it
+// (no-store, private, Authorization, Set-Cookie, Vary). Freshness comes from s-maxage, max-age or Expires,
+// counted against the age the response already had when it arrived (Age, Date); a stale entry with an ETag
+// or Last-Modified is revalidated with a conditional request, and a 304 answer refreshes it and is served
+// from the cache. Hop-by-hop headers are not stored, a hit answers with its own Connection header.
+// Entries live in an LRU memory tier bounded in bytes. What falls out of it moves to an optional disk tier,
+// one file per entry read back through a memory mapping, with its own byte bound; a disk hit is promoted
+// back to memory.
+public class HttpCache {
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    // hop-by-hop headers (RFC 7230 6.1) describe the connection that filled the entry, not the response
+    static final String[] HOP_BY_HOP = {"Connection", "Keep-Alive", "Proxy-Connection", "Proxy-Authenticate",
+            "Proxy-Authorization", "TE", "Trailer", "Transfer-Encoding", "Upgrade"};
+
+    // one stored response: its head (without Age and hop-by-hop headers) and body, when it was received, how old
+    // it already was then and how long it stays fresh
+    static final class Entry {
+        final String key;
+        final byte[] head;
+        final ByteBuffer body;
+        final long stored_at;
+        final long initial_age_ms;
+        final long fresh_for_ms;
+        final String etag;
+        final String last_modified;
+
+        Entry(String key, byte[] head, ByteBuffer body, long stored_at, long initial_age_ms, long fresh_for_ms,
+              String etag, String last_modified) {
+            this.key = key;
+            this.head = head;
+            this.body = body;
+            this.stored_at = stored_at;
+            this.initial_age_ms = initial_age_ms;
+            this.fresh_for_ms = fresh_for_ms;
+            this.etag = etag;
+            this.last_modified = last_modified;
+        }
+
+        // current_age of RFC 7234 4.2.3: the age on arrival plus the time spent here
+        long age(long now) {
+            return initial_age_ms + Math.max(0, now - stored_at);
+        }
+
+        boolean isFresh(long now) {
+            return age(now) < fresh_for_ms;
+        }
+
+        boolean hasValidator() {
+            return etag != null || last_modified != null;
+        }
+
+        long size() {
+            return head.length + body.remaining();
+        }
+    }
+
+    // where an entry that left the memory tier is stored, entry holds everything but the body
+    static final class DiskEntry {
+        final Path path;
+        final Entry entry;
+        final long size;
+
+        DiskEntry(Path path, Entry entry, long size) {
+            this.path = path;
+            this.entry = entry;
+            this.size = size;
+        }
+    }
+
+    private final long memory_limit;
+    private final long disk_limit;
+    private final long max_object;
+    private final Path directory;
+
+    // guarded by this
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memory_bytes;
+    // guarded by disk
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long disk_bytes;
+
+    // counted by the caller, which knows whether an entry answered the request
+    final LongAdder hits = new LongAdder();
+    final LongAdder disk_reads = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder revalidated = new LongAdder();
+    final LongAdder stores = new LongAdder();
+
+    // directory may be null for a memory-only cache; files a previous run left there are removed
+    public HttpCache(long memory_limit, Path directory, long disk_limit, long max_object) throws IOException {
+        this.memory_limit = memory_limit;
+        this.directory = directory;
+        this.disk_limit = directory == null ? 0 : disk_limit;
+        this.max_object = max_object;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*.cache")) {
+                for (Path path : stale) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    static String key(String origin, HttpHead request) {
+        String host = request.header("Host");
+        return origin + " " + (host == null ? "" : host.toLowerCase()) + " " + request.target();
+    }
+
+    // a GET the cache may answer or store
+    static boolean cacheableRequest(HttpHead request) {
+        return request.isMethod("GET") && request.indexOf("Authorization") < 0 && request.indexOf("Range") < 0
+                && !hasDirective(request, "no-store");
+    }
+
+    // the client insists on a response checked with the origin
+    static boolean requiresRevalidation(HttpHead request) {
+        return hasDirective(request, "no-cache") || request.hasToken("Pragma", "no-cache")
+                || directiveValue(request, "max-age") == 0;
+    }
+
+    // the client validates on its own, its conditional request is passed through untouched
+    static boolean isConditional(HttpHead request) {
+        return request.indexOf("If-None-Match") >= 0 || request.indexOf("If-Modified-Since") >= 0;
+    }
+
+    boolean cacheableResponse(HttpHead response, long body_length) {
+        return response.status() == 200 && body_length >= 0 && body_length <= max_object
+                && !hasDirective(response, "no-store") && !hasDirective(response, "private")
+                && response.indexOf("Set-Cookie") < 0 && response.indexOf("Vary") < 0
+                && (freshness(response) > 0 || response.indexOf("ETag") >= 0 || response.indexOf("Last-Modified") >= 0);
+    }
+
+    // memory first, then disk; null on a miss
+    Entry lookup(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = memory.get(key);
+        }
+        if (entry != null) {
+            return entry;
+        }
+        DiskEntry stored;
+        synchronized (disk) {
+            stored = disk.get(key);
+        }
+        if (stored != null) {
+            entry = load(stored);
+            if (entry != null) {
+                disk_reads.increment();
+                // the memory tier gets a heap copy, this request is answered from the mapping
+                ByteBuffer copy = ByteBuffer.allocate(entry.body.remaining());
+                copy.put(entry.body.duplicate()).flip();
+                put(new Entry(key, entry.head, copy, entry.stored_at, entry.initial_age_ms, entry.fresh_for_ms,
+                        entry.etag, entry.last_modified));
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // the cached copy of a response whose body was captured in full; response_delay_ms is the time from sending
+    // the request to receiving the response head
+    void store(String key, HttpHead response, byte[] body, long response_delay_ms) {
+        long now = System.currentTimeMillis();
+        put(new Entry(key, storedHead(response, null), ByteBuffer.wrap(body), now,
+                initialAge(response, now, response_delay_ms), freshness(response), response.header("ETag"),
+                response.header("Last-Modified")));
+        stores.increment();
+    }
+
+    // a 304 for a revalidated entry: headers it carries replace the stored ones, the body stays, and the age
+    // starts over from that of the 304
+    Entry refresh(Entry entry, HttpHead not_modified, long response_delay_ms) {
+        HttpHead stored = new HttpHead(entry.head);
+        stored.length = entry.head.length;
+        try {
+            stored.parse();
+        } catch (IOException e) {
+            return entry;
+        }
+        byte[] head = storedHead(stored, not_modified);
+        HttpHead merged = new HttpHead(head);
+        merged.length = head.length;
+        try {
+            merged.parse();
+        } catch (IOException e) {
+            return entry;
+        }
+        long now = System.currentTimeMillis();
+        Entry refreshed = new Entry(entry.key, head, entry.body.duplicate(), now,
+                initialAge(not_modified, now, response_delay_ms), freshness(merged), merged.header("ETag"),
+                merged.header("Last-Modified"));
+        put(refreshed);
+        revalidated.increment();
+        return refreshed;
+    }
+
+    // the request with the entry's validators added, for the origin to answer 304 if nothing changed
+    static HttpHead conditional(HttpHead request, Entry entry) throws IOException {
+        int end = request.length - (request.raw[request.length - 2] == '\r' ? 2 : 1);
+        StringBuilder extra = new StringBuilder();
+        if (entry.etag != null) {
+            extra.append("If-None-Match: ").append(entry.etag).append("\r\n");
+        }
+        if (entry.last_modified != null) {
+            extra.append("If-Modified-Since: ").append(entry.last_modified).append("\r\n");
+        }
+        extra.append("\r\n");
+        byte[] added = extra.toString().getBytes(StandardCharsets.ISO_8859_1);
+        HttpHead conditional = new HttpHead(end + added.length);
+        System.arraycopy(request.raw, 0, conditional.raw, 0, end);
+        System.arraycopy(added, 0, conditional.raw, end, added.length);
+        conditional.length = end + added.length;
+        conditional.parse();
+        return conditional;
+    }
+
+    // the stored response with its current Age and a Connection header for the exchange it answers; returns
+    // the number of bytes written
+    long writeTo(Entry entry, OutputStream out, boolean keep_alive) throws IOException {
+        long age = entry.age(System.currentTimeMillis()) / 1000;
+        int end = entry.head.length - 2;
+        out.write(entry.head, 0, end);
+        byte[] age_line = ("Connection: " + (keep_alive ? "keep-alive" : "close") + "\r\nAge: " + age + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        out.write(age_line);
+        ByteBuffer body = entry.body.duplicate();
+        long written = end + age_line.length + body.remaining();
+        if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(body.remaining(), 16 * 1024)];
+            while (body.hasRemaining()) {
+                int n = Math.min(chunk.length, body.remaining());
+                body.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+        out.flush();
+        return written;
+    }
+
+    // collects the body of a cacheable response while it is forwarded
+    static final class Capture extends FilterOutputStream {
+        private final byte[] body;
+        private int captured;
+
+        Capture(OutputStream out, long body_length) {
+            super(out);
+            this.body = new byte[(int) body_length];
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int n = Math.min(len, body.length - captured);
+            System.arraycopy(b, off, body, captured, n);
+            captured += n;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (captured < body.length) {
+                body[captured++] = (byte) b;
+            }
+        }
+
+        boolean complete() {
+            return captured == body.length;
+        }
+
+        byte[] body() {
+            return body;
+        }
+    }
+
+    private void put(Entry entry) {
+        if (entry.size() > memory_limit) {
+            return;
+        }
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry previous = memory.put(entry.key, entry);
+            if (previous != null) {
+                memory_bytes -= previous.size();
+            }
+            memory_bytes += entry.size();
+            Iterator<Entry> it = memory.values().iterator();
+            while (memory_bytes > memory_limit && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                memory_bytes -= eldest.size();
+                evicted.add(eldest);
+            }
+        }
+        // written outside the lock, memory hits do not wait for the disk
+        for (Entry eldest : evicted) {
+            demote(eldest);
+        }
+    }
+
+    private void demote(Entry entry) {
+        if (directory == null || entry.size() > disk_limit) {
+            return;
+        }
+        synchronized (disk) {
+            DiskEntry stored = disk.get(entry.key);
+            if (stored != null && stored.entry.stored_at == entry.stored_at) {
+                // a promoted entry that did not change since, its file is still current
+                return;
+            }
+        }
+        Path path = directory.resolve(fileName(entry.key, entry.stored_at));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer body = entry.body.duplicate();
+            channel.write(new ByteBuffer[]{ByteBuffer.wrap(entry.head), body});
+        } catch (IOException e) {
+            deleteQuietly(path);
+            return;
+        }
+        List<Path> removed = new ArrayList<>();
+        synchronized (disk) {
+            Entry without_body = new Entry(entry.key, entry.head, ByteBuffer.allocate(0), entry.stored_at,
+                    entry.initial_age_ms, entry.fresh_for_ms, entry.etag, entry.last_modified);
+            DiskEntry previous = disk.put(entry.key, new DiskEntry(path, without_body, entry.size()));
+            if (previous != null) {
+                disk_bytes -= previous.size;
+                removed.add(previous.path);
+            }
+            disk_bytes += entry.size();
+            Iterator<DiskEntry> it = disk.values().iterator();
+            while (disk_bytes > disk_limit && it.hasNext()) {
+                DiskEntry eldest = it.next();
+                it.remove();
+                disk_bytes -= eldest.size;
+                removed.add(eldest.path);
+            }
+        }
+        // a mapping somebody is still reading stays valid after the file is deleted
+        for (Path old : removed) {
+            deleteQuietly(old);
+        }
+    }
+
+    // maps the file; the body is read straight from the mapping
+    private Entry load(DiskEntry stored) {
+        Entry entry = stored.entry;
+        try (FileChannel channel = FileChannel.open(stored.path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, stored.size);
+            mapped.position(entry.head.length);
+            return new Entry(entry.key, entry.head, mapped.slice(), entry.stored_at, entry.initial_age_ms,
+                    entry.fresh_for_ms, entry.etag, entry.last_modified);
+        } catch (IOException e) {
+            synchronized (disk) {
+                if (disk.remove(entry.key, stored)) {
+                    disk_bytes -= stored.size;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static String fileName(String key, long stored_at) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.append('-').append(stored_at).append(".cache").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // start line and end-to-end headers of the response without Age, with the headers of update (a 304)
+    // replacing those of the same name; always ends with an empty line
+    private static byte[] storedHead(HttpHead response, HttpHead update) {
+        StringBuilder head = new StringBuilder();
+        int line_end = 0;
+        while (response.raw[line_end] != '\n') line_end++;
+        if (line_end > 0 && response.raw[line_end - 1] == '\r') line_end--;
+        head.append(response.text(0, line_end)).append("\r\n");
+        for (int h = 0; h < response.headerCount(); h++) {
+            String name = response.name(h);
+            if (name.equalsIgnoreCase("Age") || hopByHop(response, name)
+                    || (update != null && updatable(update, name) && update.indexOf(name) >= 0)) {
+                continue;
+            }
+            head.append(name).append(": ").append(response.value(h)).append("\r\n");
+        }
+        if (update != null) {
+            for (int h = 0; h < update.headerCount(); h++) {
+                if (updatable(update, update.name(h))) {
+                    head.append(update.name(h)).append(": ").append(update.value(h)).append("\r\n");
+                }
+            }
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // headers a 304 may update in the stored response; the length stays as stored
+    private static boolean updatable(HttpHead update, String name) {
+        return !name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Age") && !hopByHop(update, name);
+    }
+
+    // one of the standard hop-by-hop headers, or one the message's Connection header names
+    private static boolean hopByHop(HttpHead head, String name) {
+        for (String hop : HOP_BY_HOP) {
+            if (hop.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return head.hasToken("Connection", name);
+    }
+
+    // corrected_initial_age of RFC 7234 4.2.3 in milliseconds: the larger of the age the Date header implies and
+    // the Age the upstream caches reported plus the time the response took to arrive
+    static long initialAge(HttpHead response, long response_time, long response_delay_ms) {
+        long apparent_age = 0;
+        String date = response.header("Date");
+        if (date != null) {
+            try {
+                long date_value = ZonedDateTime.parse(date, HTTP_DATE).toInstant().toEpochMilli();
+                apparent_age = Math.max(0, response_time - date_value);
+            } catch (DateTimeParseException ignored) {
+            }
+        }
+        long age_value = 0;
+        String age = response.header("Age");
+        if (age != null) {
+            try {
+                // RFC 7234 5.1 caps an overflowing Age at 2^31 seconds
+                age_value = Math.min(Math.max(0, Long.parseLong(age.trim())), 1L << 31) * 1000;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return Math.max(apparent_age, age_value + response_delay_ms);
+    }
+
+    // freshness lifetime in milliseconds: s-maxage, max-age, then Expires against Date; 0 when absent
+    static long freshness(HttpHead response) {
+        if (hasDirective(response, "no-cache")) {
+            return 0;
+        }
+        long seconds = directiveValue(response, "s-maxage");
+        if (seconds < 0) {
+            seconds = directiveValue(response, "max-age");
+        }
+        if (seconds >= 0) {
+            return seconds * 1000;
+        }
+        String expires = response.header("Expires");
+        if (expires == null) {
+            return 0;
+        }
+        try {
+            long expires_at = ZonedDateTime.parse(expires, HTTP_DATE).toInstant().toEpochMilli();
+            String date = response.header("Date");
+            long date_at = date == null ? System.currentTimeMillis()
+                    : ZonedDateTime.parse(date, HTTP_DATE).toInstant().toEpochMilli();
+            return Math.max(0, expires_at - date_at);
+        } catch (DateTimeParseException e) {
+            // an invalid Expires means already expired
+            return 0;
+        }
+    }
+
+    private static boolean hasDirective(HttpHead head, String directive) {
+        return head.hasToken("Cache-Control", directive);
+    }
+
+    // the number after "directive=" in Cache-Control, -1 when absent or malformed
+    private static long directiveValue(HttpHead head, String directive) {
+        for (int h = 0; h < head.headerCount(); h++) {
+            if (!head.nameIs(h, "Cache-Control")) {
+                continue;
+            }
+            for (String part : head.value(h).split(",")) {
+                String token = part.trim();
+                if (token.regionMatches(true, 0, directive + "=", 0, directive.length() + 1)) {
+                    try {
+                        return Long.parseLong(token.substring(directive.length() + 1).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    public synchronized long memoryBytes() {
+        return memory_bytes;
+    }
+
+    public long diskBytes() {
+        synchronized (disk) {
+            return disk_bytes;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Start line and headers of one HTTP/1.x message, kept as the raw bytes received plus offsets into them.
+// Nothing is decoded up front: lookups compare bytes in place and only the values somebody asks for
+// become Strings, and writeTo() forwards the head exactly as it arrived.
+public class HttpHead {
+    static final int MAX_HEADERS = 128;
+
+    final byte[] raw;
+    int length;
+    // start line tokens: method/version, target/status, version/reason
+    int[] token_start = new int[3];
+    int[] token_end = new int[3];
+    int header_count;
+    final int[] name_start = new int[MAX_HEADERS];
+    final int[] name_end = new int[MAX_HEADERS];
+    final int[] value_start = new int[MAX_HEADERS];
+    final int[] value_end = new int[MAX_HEADERS];
+    boolean is_response;
+
+    HttpHead(int capacity) {
+        this(new byte[capacity]);
+    }
+
+    // a head stored in a buffer owned by somebody else, e.g. a pooled one
+    HttpHead(byte[] raw) {
+        this.raw = raw;
+    }
+
+    // splits the head held in raw[0, length) into start line tokens and header name/value ranges
+    void parse() throws IOException {
+        int line_end = lineEnd(0);
+        int token = 0;
+        int i = 0;
+        while (token < 3 && i < line_end) {
+            while (i < line_end && raw[i] == ' ') i++;
+            token_start[token] = i;
+            // the third token (reason phrase) runs to the end of the line
+            while (i < line_end && (raw[i] != ' ' || token == 2)) i++;
+            token_end[token] = i;
+            token++;
+        }
+        if (token < 2) {
+            throw new IOException("malformed start line: " + text(0, line_end));
+        }
+        if (token == 2) {
+            token_start[2] = token_end[2] = line_end;
+        }
+        is_response = startsWith(0, "HTTP/");
+
+        header_count = 0;
+        int line_start = next(line_end);
+        while (line_start < length) {
+            line_end = lineEnd(line_start);
+            if (line_end == line_start) {
+                break;
+            }
+            int colon = line_start;
+            while (colon < line_end && raw[colon] != ':') colon++;
+            if (colon == line_end) {
+                throw new IOException("malformed header: " + text(line_start, line_end));
+            }
+            if (header_count == MAX_HEADERS) {
+                throw new IOException("too many headers");
+            }
+            int v = colon + 1;
+            int e = line_end;
+            while (v < e && (raw[v] == ' ' || raw[v] == '\t')) v++;
+            while (e > v && (raw[e - 1] == ' ' || raw[e - 1] == '\t')) e--;
+            name_start[header_count] = line_start;
+            name_end[header_count] = colon;
+            value_start[header_count] = v;
+            value_end[header_count] = e;
+            header_count++;
+            line_start = next(line_end);
+        }
+    }
+
+    // index of the CR (or bare LF) ending the line that starts at from
+    private int lineEnd(int from) {
+        int i = from;
+        while (i < length && raw[i] != '\n') i++;
+        if (i > from && raw[i - 1] == '\r') i--;
+        return i;
+    }
+
+    private int next(int line_end) {
+        return raw[line_end] == '\r' ? line_end + 2 : line_end + 1;
+    }
+
+    public String method() {
+        return is_response ? null : text(token_start[0], token_end[0]);
+    }
+
+    public String target() {
+        return is_response ? null : text(token_start[1], token_end[1]);
+    }
+
+    public String version() {
+        return is_response ? text(token_start[0], token_end[0]) : text(token_start[2], token_end[2]);
+    }
+
+    public boolean isMethod(String method) {
+        return !is_response && regionEquals(token_start[0], token_end[0], method, false);
+    }
+
+    public int status() {
+        if (!is_response) {
+            return -1;
+        }
+        int status = 0;
+        for (int i = token_start[1]; i < token_end[1]; i++) {
+            status = status * 10 + (raw[i] - '0');
+        }
+        return status;
+    }
+
+    boolean isHttp11() {
+        int start = is_response ? token_start[0] : token_start[2];
+        int end = is_response ? token_end[0] : token_end[2];
+        return regionEquals(start, end, "HTTP/1.1", false);
+    }
+
+    public int headerCount() {
+        return header_count;
+    }
+
+    public boolean nameIs(int header, String name) {
+        return regionEquals(name_start[header], name_end[header], name, true);
+    }
+
+    public String name(int header) {
+        return text(name_start[header], name_end[header]);
+    }
+
+    public String value(int header) {
+        return text(value_start[header], value_end[header]);
+    }
+
+    // whether the value of a header begins with prefix, ignoring case
+    public boolean valueStartsWith(int header, String prefix) {
+        int start = value_start[header];
+        return start + prefix.length() <= value_end[header]
+                && regionEquals(start, start + prefix.length(), prefix, true);
+    }
+
+    // value of the first header with that name, or null
+    public String header(String name) {
+        int h = indexOf(name);
+        return h < 0 ? null : value(h);
+    }
+
+    public int indexOf(String name) {
+        for (int h = 0; h < header_count; h++) {
+            if (nameIs(h, name)) {
+                return h;
+            }
+        }
+        return -1;
+    }
+
+    // true when a comma separated header (Connection, Transfer-Encoding) lists the token
+    public boolean hasToken(String name, String token) {
+        for (int h = 0; h < header_count; h++) {
+            if (!nameIs(h, name)) {
+                continue;
+            }
+            int i = value_start[h];
+            int end = value_end[h];
+            while (i < end) {
+                while (i < end && (raw[i] == ' ' || raw[i] == ',')) i++;
+                int s = i;
+                while (i < end && raw[i] != ',') i++;
+                int e = i;
+                while (e > s && raw[e - 1] == ' ') e--;
+                if (regionEquals(s, e, token, true)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // the last transfer coding is chunked
+    public boolean isChunked() {
+        for (int h = header_count - 1; h >= 0; h--) {
+            if (nameIs(h, "Transfer-Encoding")) {
+                int e = value_end[h];
+                int s = e;
+                while (s > value_start[h] && raw[s - 1] != ',' && raw[s - 1] != ' ') s--;
+                return regionEquals(s, e, "chunked", true);
+            }
+        }
+        return false;
+    }
+
+    // Content-Length as a number, -1 when absent; repeated headers must agree, and more than 18 digits are
+    // refused rather than allowed to overflow into a negative length
+    public long contentLength() throws IOException {
+        long content_length = -1;
+        for (int h = 0; h < header_count; h++) {
+            if (!nameIs(h, "Content-Length")) {
+                continue;
+            }
+            int digits = value_end[h] - value_start[h];
+            if (digits == 0 || digits > 18) {
+                throw new IOException("malformed Content-Length: " + value(h));
+            }
+            long value = 0;
+            for (int i = value_start[h]; i < value_end[h]; i++) {
+                int digit = raw[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IOException("malformed Content-Length: " + value(h));
+                }
+                value = value * 10 + digit;
+            }
+            if (content_length >= 0 && value != content_length) {
+                throw new IOException("conflicting Content-Length values");
+            }
+            content_length = value;
+        }
+        return content_length;
+    }
+
+    // whether the connection may carry another message after this one
+    public boolean keepAlive() {
+        if (hasToken("Connection", "close")) {
+            return false;
+        }
+        return isHttp11() || hasToken("Connection", "keep-alive");
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(raw, 0, length);
+    }
+
+    String text(int start, int end) {
+        return new String(raw, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean startsWith(int from, String prefix) {
+        return from + prefix.length() <= length && regionEquals(from, from + prefix.length(), prefix, false);
+    }
+
+    private boolean regionEquals(int start, int end, String s, boolean ignore_case) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            int a = raw[start + i];
+            int b = s.charAt(i);
+            if (a != b && !(ignore_case && Character.toLowerCase(a) == Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Incremental HTTP/1.1 framing over one connection.
+// readHead() collects a start line and headers into an HttpHead, forwardBody() then streams the body
+// described by that head to another socket as the bytes arrive: Content-Length bodies, chunked bodies with
+// their trailers, and bodies delimited by the end of the connection. Memory per connection is the read
+// buffer and the head, whatever the payload size, and bytes that belong to the next (pipelined) message
+// stay in the buffer for the next readHead(). Both buffers can come from a BufferPool, release() returns
+// them when the connection is done.
+public class HttpMessageReader {
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int MAX_HEAD_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_LINE = 4096;
+    // bodyLength() results that are not a byte count
+    static final long CHUNKED = -1;
+    static final long UNTIL_CLOSE = -2;
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private final HttpHead head;
+    // where the line found by the last readLine() starts in buf, it ends (CRLF included) at pos
+    private int line_start;
+    private final BufferPool pool;
+    private ByteBuffer pooled_buf;
+    private ByteBuffer pooled_head;
+
+    public HttpMessageReader(InputStream in) {
+        this.in = in;
+        this.buf = new byte[BUFFER_SIZE];
+        this.head = new HttpHead(MAX_HEAD_SIZE);
+        this.pool = null;
+    }
+
+    // pool must hand out heap buffers of BUFFER_SIZE bytes (MAX_HEAD_SIZE is the same)
+    public HttpMessageReader(InputStream in, BufferPool pool) throws IOException {
+        this.in = in;
+        this.pool = pool;
+        this.pooled_buf = pool.acquire();
+        try {
+            this.pooled_head = pool.acquire();
+        } catch (IOException e) {
+            pool.release(pooled_buf);
+            throw e;
+        }
+        this.buf = pooled_buf.array();
+        this.head = new HttpHead(pooled_head.array());
+    }
+
+    // reads the next message head, or returns null if the peer closed the connection between messages;
+    // the returned head is reused by the next call
+    public HttpHead readHead() throws IOException {
+        int length = 0;
+        // tolerate empty lines before a request (RFC 7230 section 3.5)
+        while (true) {
+            if (pos == limit && !fill()) {
+                return null;
+            }
+            if (buf[pos] == '\r' || buf[pos] == '\n') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        byte[] raw = head.raw;
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw new IOException("connection closed inside a message head");
+            }
+            // copy until the empty line that ends the head
+            while (pos < limit) {
+                if (length == raw.length) {
+                    throw new IOException("message head larger than " + MAX_HEAD_SIZE + " bytes");
+                }
+                byte b = buf[pos++];
+                raw[length++] = b;
+                if (b == '\n' && endsHead(raw, length)) {
+                    head.length = length;
+                    head.parse();
+                    return head;
+                }
+            }
+        }
+    }
+
+    private static boolean endsHead(byte[] raw, int length) {
+        return (length >= 2 && raw[length - 2] == '\n')
+                || (length >= 3 && raw[length - 2] == '\r' && raw[length - 3] == '\n');
+    }
+
+    // how the body of a message is delimited, RFC 7230 section 3.3.3; framing that two parsers could read
+    // differently (both Transfer-Encoding and Content-Length, a request not ending in chunked, conflicting
+    // or overlong lengths) is refused with an IOException before anything is forwarded
+    public static long bodyLength(HttpHead head, String request_method) throws IOException {
+        if (head.is_response) {
+            int status = head.status();
+            if ("HEAD".equals(request_method) || (status >= 100 && status < 200) || status == 204 || status == 304) {
+                return 0;
+            }
+        }
+        long content_length = head.contentLength();
+        if (head.indexOf("Transfer-Encoding") >= 0) {
+            if (content_length >= 0) {
+                throw new IOException("message has both Transfer-Encoding and Content-Length");
+            }
+            if (head.isChunked()) {
+                return CHUNKED;
+            }
+            if (!head.is_response) {
+                throw new IOException("request Transfer-Encoding does not end in chunked");
+            }
+            return UNTIL_CLOSE;
+        }
+        if (content_length >= 0) {
+            return content_length;
+        }
+        // a request without framing headers has no body, a response runs until the connection closes
+        return head.is_response ? UNTIL_CLOSE : 0;
+    }
+
+    // streams the body framed as bodyLength() says and returns the number of body bytes forwarded
+    public long forwardBody(long body_length, OutputStream out) throws IOException {
+        if (body_length == CHUNKED) {
+            return forwardChunked(out);
+        }
+        if (body_length == UNTIL_CLOSE) {
+            long total = 0;
+            while (pos < limit || fill()) {
+                total += forward(limit - pos, out);
+                out.flush();
+            }
+            return total;
+        }
+        long remaining = body_length;
+        while (remaining > 0) {
+            if (pos == limit && !fill()) {
+                throw new IOException("connection closed with " + remaining + " body bytes missing");
+            }
+            remaining -= forward((int) Math.min(remaining, limit - pos), out);
+        }
+        out.flush();
+        return body_length;
+    }
+
+    private long forwardChunked(OutputStream out) throws IOException {
+        long total = 0;
+        while (true) {
+            long size = parseChunkSize(readLine());
+            out.write(buf, line_start, pos - line_start);
+            if (size == 0) {
+                break;
+            }
+            long remaining = size;
+            while (remaining > 0) {
+                if (pos == limit && !fill()) {
+                    throw new IOException("connection closed inside a chunk");
+                }
+                remaining -= forward((int) Math.min(remaining, limit - pos), out);
+            }
+            total += size;
+            // the CRLF after the chunk data
+            readLine();
+            out.write(buf, line_start, pos - line_start);
+        }
+        // trailer fields, up to the empty line
+        while (true) {
+            int line_length = readLine();
+            out.write(buf, line_start, pos - line_start);
+            if (line_length == 0) {
+                break;
+            }
+        }
+        out.flush();
+        return total;
+    }
+
+    // makes sure a whole line is buffered at pos, advances past it and returns its length without CRLF;
+    // the line bytes stay in buf[line_start, pos) so the caller can forward them untouched
+    private int readLine() throws IOException {
+        int i = pos;
+        while (true) {
+            while (i < limit && buf[i] != '\n') i++;
+            if (i < limit) {
+                break;
+            }
+            if (i - pos >= MAX_CHUNK_LINE) {
+                throw new IOException("chunk line too long");
+            }
+            int scanned = i - pos;
+            if (!fill()) {
+                throw new IOException("connection closed inside a chunked body");
+            }
+            i = pos + scanned;
+        }
+        int end = i;
+        if (end > pos && buf[end - 1] == '\r') end--;
+        int length = end - pos;
+        line_start = pos;
+        pos = i + 1;
+        return length;
+    }
+
+    // hex size before any chunk extension of the line just read
+    private long parseChunkSize(int line_length) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (int i = line_start; i < line_start + line_length; i++) {
+            int d = Character.digit(buf[i], 16);
+            if (d < 0) {
+                break;
+            }
+            size = size * 16 + d;
+            if (++digits > 15) {
+                throw new IOException("chunk size too large");
+            }
+        }
+        if (digits == 0) {
+            throw new IOException("malformed chunk size");
+        }
+        return size;
+    }
+
+    private int forward(int n, OutputStream out) throws IOException {
+        out.write(buf, pos, n);
+        pos += n;
+        return n;
+    }
+
+    // bytes already read from the socket but not consumed, e.g. the start of a pipelined request
+    public int buffered() {
+        return limit - pos;
+    }
+
+    // forwards whatever is buffered, used when a connection switches protocols
+    public void drainTo(OutputStream out) throws IOException {
+        forward(limit - pos, out);
+        out.flush();
+    }
+
+    // gives pooled buffers back; neither this reader nor the last head may be used afterwards
+    public void release() {
+        if (pool != null) {
+            pool.release(pooled_buf);
+            pool.release(pooled_head);
+            pooled_buf = null;
+            pooled_head = null;
+        }
+    }
+
+    // compacts the buffer and reads more bytes; false on EOF
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            throw new IOException("read buffer full");
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+}
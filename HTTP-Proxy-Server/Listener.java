@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// The listening side of the proxy: binds every configured address and accepts on several threads.
+// With more than one acceptor per address, each acceptor binds its own socket with SO_REUSEPORT where the
+// platform has it, so the kernel spreads new connections over them; elsewhere the acceptors of an address
+// share one socket. Accepted sockets get the client socket options and are handed to the engine's handler.
+public class Listener {
+    // how long an acceptor backs off after accept() failed, e.g. because the process is out of descriptors
+    static final int ACCEPT_RETRY_MS = 50;
+
+    interface Handler {
+        void accepted(Socket client) throws IOException;
+    }
+
+    private final List<InetSocketAddress> addresses;
+    private final int backlog;
+    private final int acceptors;
+    // accept through ServerSocketChannels, so the accepted sockets have channels (raw relay and NIO engine)
+    private final boolean channels;
+    private final SocketTuning tuning;
+    private final ProxyMetrics metrics;
+    private final AccessLog log;
+
+    public Listener(ProxyConfig config, boolean channels) {
+        this.addresses = config.listenAddresses();
+        this.backlog = config.backlog;
+        this.acceptors = Math.max(1, config.acceptors);
+        this.channels = channels;
+        this.tuning = config.clientTuning();
+        this.metrics = config.metrics();
+        this.log = config.accessLog();
+    }
+
+    // binds all addresses first, so a bad address fails before anything is accepted, then accepts forever:
+    // one acceptor runs on the calling thread, the others on their own
+    public void serve(Handler handler) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        for (InetSocketAddress address : addresses) {
+            ServerSocket first = bind(address, acceptors > 1);
+            boolean reuse_port = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            sockets.add(first);
+            for (int i = 1; i < acceptors; i++) {
+                sockets.add(reuse_port ? bind(address, true) : first);
+            }
+            log.message("Listening on " + address + " with " + acceptors + " acceptor"
+                    + (acceptors > 1 ? (reuse_port ? "s, one socket each" : "s sharing one socket") : ""));
+        }
+        for (int i = 1; i < sockets.size(); i++) {
+            ServerSocket socket = sockets.get(i);
+            Thread t = new Thread(() -> accept(socket, handler), "sockspy-acceptor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        accept(sockets.get(0), handler);
+    }
+
+    private ServerSocket bind(InetSocketAddress address, boolean reuse_port) throws IOException {
+        ServerSocket socket = channels ? ServerSocketChannel.open().socket() : new ServerSocket();
+        if (reuse_port && socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        // accepted sockets inherit it, and it has to be in place before the handshake to set the window scale
+        if (tuning.receive_buffer > 0) {
+            socket.setReceiveBufferSize(tuning.receive_buffer);
+        }
+        socket.bind(address, backlog);
+        return socket;
+    }
+
+    private void accept(ServerSocket server, Handler handler) {
+        while (true) {
+            Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                if (server.isClosed()) {
+                    return;
+                }
+                log.message("Accept failed on " + server.getLocalSocketAddress() + ": " + e.getMessage());
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            metrics.accepted.increment();
+            try {
+                tuning.apply(client);
+                handler.accepted(client);
+            } catch (IOException e) {
+                log.message("Connection error: while accepting " + client.getRemoteSocketAddress() + ": " + e.getMessage());
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,522 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Startup settings of Sockspy, parsed from "--key=value" command line arguments.
+// Settings keep the values the proxy always used as their defaults unless noted, so running without
+// arguments behaves like the original 20-connection server.
+public class ProxyConfig {
+    enum Mode { THREADS, VIRTUAL, NIO }
+
+    Mode mode = Mode.THREADS;
+    int port = 8080;
+    // addresses to listen on as host:port, [v6]:port or :port; when empty, port on the wildcard address
+    List<InetSocketAddress> listen = new ArrayList<>();
+    // backlog of the listening socket, connections beyond it wait in (or are dropped by) the kernel
+    int backlog = 50;
+    // accepting threads per listen address
+    int acceptors = 1;
+    // options of client and upstream sockets; TCP_NODELAY is on by default, which the original server
+    // did not do, buffer sizes of 0 keep the kernel defaults
+    boolean tcp_nodelay = true;
+    int client_send_buffer;
+    int client_receive_buffer;
+    int upstream_send_buffer;
+    int upstream_receive_buffer;
+    // worker threads of the platform thread pool (THREADS mode)
+    int threads = 20;
+    // tunnels served at the same time before new connections are refused
+    int max_connections = 20;
+    // connections waiting for a free slot, and for how long; 0 for max_per_client means max_connections
+    int admission_queue = 64;
+    long admission_queue_timeout_ms = 1000;
+    int max_per_client = 0;
+    // average queue wait beyond which new connections are refused instead of queued
+    long shed_target_ms = 500;
+    // selector loops (NIO mode)
+    int loops = Runtime.getRuntime().availableProcessors();
+    // connect and DNS timeout for destinations
+    int timeout_ms = 5000;
+    // tunnel deadlines, tracked on one timing wheel: the handshake from accept to the SOCKS reply, silence
+    // while relaying, the wait for the next request on a keep-alive HTTP tunnel, and the whole tunnel's
+    // life (0 is unlimited); a relay that keeps moving bytes is no longer cut after timeout_ms
+    long handshake_timeout_ms = 5000;
+    long idle_timeout_ms = 60000;
+    long keepalive_timeout_ms = 5000;
+    long lifetime_ms;
+    long timer_tick_ms = 100;
+    TimingWheel timing_wheel;
+    boolean raw_relay;
+    Executor pump_executor;
+    // how long resolved and failed SOCKS4a hostnames are cached, whatever the TTL of the DNS records
+    long dns_cache_ms = 30000;
+    long dns_negative_cache_ms = 5000;
+    int dns_cache_size = 10000;
+    int dns_threads = 4;
+    // built from the settings above unless somebody plugged in a resolver before starting the proxy
+    HostResolver resolver;
+    // happy eyeballs upstream connects: delay before racing the next address, lower bound of the adaptive
+    // per-address connect timeout (the upper bound is timeout_ms), and how long a failed address is avoided
+    long connect_attempt_delay_ms = 250;
+    long connect_min_timeout_ms = 500;
+    long connect_failure_ttl_ms = 5000;
+    UpstreamConnector upstream_connector;
+    // keep-alive upstream connections: idle ones kept per destination, open ones allowed per destination,
+    // and how long an idle one may wait for reuse
+    int pool_max_idle = 8;
+    int pool_max_per_host = 64;
+    long pool_idle_timeout_ms = 30000;
+    UpstreamPool upstream_pool;
+    // loopback port of the /metrics text endpoint, 0 leaves it off (JMX is always available)
+    int metrics_port = 0;
+    ProxyMetrics metrics;
+    // access log: file (stderr when unset), rotation size and file count, ring capacity and what to do when full
+    String access_log_path;
+    long access_log_max_bytes = 10 * 1024 * 1024;
+    int access_log_files = 5;
+    int access_log_capacity = 8192;
+    boolean access_log_block;
+    AccessLog access_log;
+    // memory all pooled buffers together may take, and one in how many buffer leases records where it was acquired
+    long buffer_memory = 256L * 1024 * 1024;
+    int buffer_leak_sample = 128;
+    BufferPool.Budget buffer_budget;
+    BufferPool relay_buffers;
+    BufferPool heap_buffers;
+    BufferPool handshake_buffers;
+    // bandwidth limits in bytes per second for the whole proxy, each client IP and each destination address
+    // (0 is unlimited), the burst each may send at full speed, and reads below interactive_bytes, which the
+    // global limit does not delay; all of them can be changed later over JMX
+    long rate_global;
+    long rate_client;
+    long rate_destination;
+    long rate_burst = 64 * 1024;
+    long interactive_bytes = 2048;
+    Shaper shaper;
+    // HTTP response cache (off unless enabled): memory tier size, optional disk tier directory and size, and
+    // the largest response stored
+    boolean cache;
+    long cache_memory = 64L * 1024 * 1024;
+    String cache_dir;
+    long cache_disk = 1024L * 1024 * 1024;
+    long cache_max_object = 8L * 1024 * 1024;
+    HttpCache http_cache;
+    // request header filters, by built-in name ("credentials") or class name of a HeaderFilter with a public
+    // no-argument constructor, and the worker threads and queue of the analyses they offload
+    List<String> header_filters = new ArrayList<>(Collections.singletonList("credentials"));
+    int inspect_threads = 1;
+    int inspect_queue = 1024;
+    HeaderFilterChain header_filter_chain;
+    // SOCKS5 users allowed in with username/password authentication; without any, SOCKS5 needs no authentication
+    Map<String, String> socks5_users = new HashMap<>();
+    Socks5Authenticator socks5_authenticator;
+
+    static ProxyConfig parse(String[] args) {
+        ProxyConfig config = new ProxyConfig();
+        for (String arg : args) {
+            String key = arg;
+            String value = null;
+            int eq = arg.indexOf('=');
+            if (eq >= 0) {
+                key = arg.substring(0, eq);
+                value = arg.substring(eq + 1);
+            }
+            switch (key) {
+                case "--nio":
+                    config.mode = Mode.NIO;
+                    break;
+                case "--virtual":
+                    config.mode = Mode.VIRTUAL;
+                    break;
+                case "--raw":
+                    config.raw_relay = true;
+                    break;
+                case "--port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "--listen":
+                    for (String address : value.split(",")) {
+                        config.listen.add(parseAddress(address.trim()));
+                    }
+                    break;
+                case "--backlog":
+                    config.backlog = Integer.parseInt(value);
+                    break;
+                case "--acceptors":
+                    config.acceptors = Integer.parseInt(value);
+                    break;
+                case "--tcp-nodelay":
+                    config.tcp_nodelay = Boolean.parseBoolean(value);
+                    break;
+                case "--client-send-buffer":
+                    config.client_send_buffer = Integer.parseInt(value);
+                    break;
+                case "--client-receive-buffer":
+                    config.client_receive_buffer = Integer.parseInt(value);
+                    break;
+                case "--upstream-send-buffer":
+                    config.upstream_send_buffer = Integer.parseInt(value);
+                    break;
+                case "--upstream-receive-buffer":
+                    config.upstream_receive_buffer = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    config.threads = Integer.parseInt(value);
+                    break;
+                case "--max-connections":
+                    config.max_connections = Integer.parseInt(value);
+                    break;
+                case "--queue":
+                    config.admission_queue = Integer.parseInt(value);
+                    break;
+                case "--queue-timeout":
+                    config.admission_queue_timeout_ms = Long.parseLong(value);
+                    break;
+                case "--max-per-client":
+                    config.max_per_client = Integer.parseInt(value);
+                    break;
+                case "--shed-target":
+                    config.shed_target_ms = Long.parseLong(value);
+                    break;
+                case "--loops":
+                    config.loops = Integer.parseInt(value);
+                    break;
+                case "--timeout":
+                    config.timeout_ms = Integer.parseInt(value);
+                    break;
+                case "--handshake-timeout":
+                    config.handshake_timeout_ms = Long.parseLong(value);
+                    break;
+                case "--idle-timeout":
+                    config.idle_timeout_ms = Long.parseLong(value);
+                    break;
+                case "--keepalive-timeout":
+                    config.keepalive_timeout_ms = Long.parseLong(value);
+                    break;
+                case "--lifetime":
+                    config.lifetime_ms = Long.parseLong(value);
+                    break;
+                case "--timer-tick":
+                    config.timer_tick_ms = Long.parseLong(value);
+                    break;
+                case "--dns-cache-time":
+                    config.dns_cache_ms = Long.parseLong(value);
+                    break;
+                case "--dns-negative-cache-time":
+                    config.dns_negative_cache_ms = Long.parseLong(value);
+                    break;
+                case "--dns-cache-size":
+                    config.dns_cache_size = Integer.parseInt(value);
+                    break;
+                case "--dns-threads":
+                    config.dns_threads = Integer.parseInt(value);
+                    break;
+                case "--connect-attempt-delay":
+                    config.connect_attempt_delay_ms = Long.parseLong(value);
+                    break;
+                case "--connect-min-timeout":
+                    config.connect_min_timeout_ms = Long.parseLong(value);
+                    break;
+                case "--connect-failure-ttl":
+                    config.connect_failure_ttl_ms = Long.parseLong(value);
+                    break;
+                case "--pool-max-idle":
+                    config.pool_max_idle = Integer.parseInt(value);
+                    break;
+                case "--pool-max-per-host":
+                    config.pool_max_per_host = Integer.parseInt(value);
+                    break;
+                case "--pool-idle-timeout":
+                    config.pool_idle_timeout_ms = Long.parseLong(value);
+                    break;
+                case "--metrics-port":
+                    config.metrics_port = Integer.parseInt(value);
+                    break;
+                case "--access-log":
+                    config.access_log_path = value;
+                    break;
+                case "--access-log-max-bytes":
+                    config.access_log_max_bytes = Long.parseLong(value);
+                    break;
+                case "--access-log-files":
+                    config.access_log_files = Integer.parseInt(value);
+                    break;
+                case "--access-log-capacity":
+                    config.access_log_capacity = Integer.parseInt(value);
+                    break;
+                case "--access-log-full":
+                    if (!value.equals("drop") && !value.equals("block")) {
+                        throw new IllegalArgumentException("--access-log-full must be drop or block");
+                    }
+                    config.access_log_block = value.equals("block");
+                    break;
+                case "--buffer-memory":
+                    config.buffer_memory = Long.parseLong(value);
+                    break;
+                case "--buffer-leak-sample":
+                    config.buffer_leak_sample = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    config.rate_global = Long.parseLong(value);
+                    break;
+                case "--client-rate":
+                    config.rate_client = Long.parseLong(value);
+                    break;
+                case "--destination-rate":
+                    config.rate_destination = Long.parseLong(value);
+                    break;
+                case "--rate-burst":
+                    config.rate_burst = Long.parseLong(value);
+                    break;
+                case "--interactive-bytes":
+                    config.interactive_bytes = Long.parseLong(value);
+                    break;
+                case "--cache":
+                    config.cache = true;
+                    break;
+                case "--cache-memory":
+                    config.cache_memory = Long.parseLong(value);
+                    break;
+                case "--cache-dir":
+                    config.cache_dir = value;
+                    break;
+                case "--cache-disk":
+                    config.cache_disk = Long.parseLong(value);
+                    break;
+                case "--cache-max-object":
+                    config.cache_max_object = Long.parseLong(value);
+                    break;
+                case "--header-filters":
+                    config.header_filters.clear();
+                    for (String name : value.split(",")) {
+                        if (!name.isEmpty()) {
+                            config.header_filters.add(name);
+                        }
+                    }
+                    break;
+                case "--inspect-threads":
+                    config.inspect_threads = Integer.parseInt(value);
+                    break;
+                case "--inspect-queue":
+                    config.inspect_queue = Integer.parseInt(value);
+                    break;
+                case "--socks5-users":
+                    // user:password pairs separated by commas
+                    for (String pair : value.split(",")) {
+                        int colon = pair.indexOf(':');
+                        if (colon <= 0) {
+                            throw new IllegalArgumentException("--socks5-users expects user:password pairs");
+                        }
+                        config.socks5_users.put(pair.substring(0, colon), pair.substring(colon + 1));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return config;
+    }
+
+    // host:port, [v6]:port, :port or a bare port; no host means the wildcard address
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(Integer.parseInt(address));
+        }
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    List<InetSocketAddress> listenAddresses() {
+        return listen.isEmpty() ? Collections.singletonList(new InetSocketAddress(port)) : listen;
+    }
+
+    SocketTuning clientTuning() {
+        return new SocketTuning(tcp_nodelay, client_send_buffer, client_receive_buffer);
+    }
+
+    SocketTuning upstreamTuning() {
+        return new SocketTuning(tcp_nodelay, upstream_send_buffer, upstream_receive_buffer);
+    }
+
+    int maxPerClient() {
+        return max_per_client > 0 ? max_per_client : max_connections;
+    }
+
+    synchronized HostResolver resolver() {
+        if (resolver == null) {
+            ExecutorService lookups = Executors.newFixedThreadPool(dns_threads, r -> {
+                Thread t = new Thread(r, "sockspy-resolver");
+                t.setDaemon(true);
+                return t;
+            });
+            resolver = new CachingResolver(HostResolver.system(lookups), dns_cache_ms, dns_negative_cache_ms, dns_cache_size);
+        }
+        return resolver;
+    }
+
+    synchronized UpstreamConnector upstreamConnector() {
+        if (upstream_connector == null) {
+            try {
+                upstream_connector = new UpstreamConnector(connect_attempt_delay_ms, connect_min_timeout_ms,
+                        connect_failure_ttl_ms, upstreamTuning());
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException("cannot open the connector selector", e);
+            }
+        }
+        return upstream_connector;
+    }
+
+    synchronized UpstreamPool upstreamPool() {
+        if (upstream_pool == null) {
+            upstream_pool = new UpstreamPool(pool_max_idle, pool_max_per_host, pool_idle_timeout_ms, upstreamConnector());
+        }
+        return upstream_pool;
+    }
+
+    // runs the upstream -> client pumps of raw and upgraded tunnels: a virtual thread each in VIRTUAL mode,
+    // cached platform threads otherwise; never the fixed handler pool, whose threads wait for these pumps
+    synchronized Executor pumpExecutor() {
+        if (pump_executor == null && mode == Mode.VIRTUAL) {
+            pump_executor = virtualThreads();
+        }
+        if (pump_executor == null) {
+            pump_executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "sockspy-pump");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pump_executor;
+    }
+
+    // a virtual thread per task, or null on runtimes without virtual threads; looked up reflectively so the
+    // proxy still builds and runs on releases before Java 21
+    static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    synchronized TimingWheel timingWheel() {
+        if (timing_wheel == null) {
+            timing_wheel = new TimingWheel(timer_tick_ms, 512);
+        }
+        return timing_wheel;
+    }
+
+    synchronized ProxyMetrics metrics() {
+        if (metrics == null) {
+            metrics = new ProxyMetrics();
+        }
+        return metrics;
+    }
+
+    // direct buffers for channel I/O: the NIO tunnels and the raw relay between channel sockets
+    synchronized BufferPool relayBuffers() {
+        if (relay_buffers == null) {
+            relay_buffers = new BufferPool("relay", ByteRelay.BUFFER_SIZE, true, bufferBudget(), buffer_leak_sample, accessLog());
+        }
+        return relay_buffers;
+    }
+
+    // heap buffers for stream I/O: HTTP message readers and the stream relay
+    synchronized BufferPool heapBuffers() {
+        if (heap_buffers == null) {
+            heap_buffers = new BufferPool("heap", HttpMessageReader.BUFFER_SIZE, false, bufferBudget(), buffer_leak_sample, accessLog());
+        }
+        return heap_buffers;
+    }
+
+    synchronized BufferPool handshakeBuffers() {
+        if (handshake_buffers == null) {
+            handshake_buffers = new BufferPool("handshake", HandshakeReader.BUFFER_SIZE, false, bufferBudget(), buffer_leak_sample, accessLog());
+        }
+        return handshake_buffers;
+    }
+
+    synchronized BufferPool.Budget bufferBudget() {
+        if (buffer_budget == null) {
+            buffer_budget = new BufferPool.Budget(buffer_memory);
+        }
+        return buffer_budget;
+    }
+
+    synchronized Shaper shaper() {
+        if (shaper == null) {
+            shaper = new Shaper(rate_global, rate_client, rate_destination, rate_burst, interactive_bytes);
+        }
+        return shaper;
+    }
+
+    // null while the cache is off
+    synchronized HttpCache httpCache() {
+        if (cache && http_cache == null) {
+            try {
+                http_cache = new HttpCache(cache_memory, cache_dir == null ? null : java.nio.file.Paths.get(cache_dir),
+                        cache_disk, cache_max_object);
+            } catch (java.io.IOException e) {
+                throw new IllegalArgumentException("cannot use cache directory " + cache_dir, e);
+            }
+        }
+        return http_cache;
+    }
+
+    // the filters named by --header-filters, in that order; with none, no inspector threads are started
+    synchronized HeaderFilterChain headerFilters() {
+        if (header_filter_chain == null) {
+            List<HeaderFilter> filters = new ArrayList<>();
+            for (String name : header_filters) {
+                filters.add(headerFilter(name));
+            }
+            header_filter_chain = new HeaderFilterChain(filters, inspect_threads, inspect_queue, accessLog());
+        }
+        return header_filter_chain;
+    }
+
+    private HeaderFilter headerFilter(String name) {
+        if (name.equals("credentials")) {
+            return new CredentialSniffer(accessLog());
+        }
+        try {
+            return (HeaderFilter) Class.forName(name).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown header filter: " + name, e);
+        }
+    }
+
+    // plugged in like the resolver, otherwise chosen by whether any SOCKS5 users are configured
+    synchronized Socks5Authenticator socks5Authenticator() {
+        if (socks5_authenticator == null) {
+            socks5_authenticator = socks5_users.isEmpty()
+                    ? Socks5Authenticator.none()
+                    : Socks5Authenticator.usernamePassword(socks5_users);
+        }
+        return socks5_authenticator;
+    }
+
+    synchronized AccessLog accessLog() {
+        if (access_log == null) {
+            try {
+                access_log = new AccessLog(access_log_capacity, access_log_block,
+                        access_log_path == null ? null : java.nio.file.Paths.get(access_log_path),
+                        access_log_max_bytes, access_log_files);
+            } catch (java.io.IOException e) {
+                throw new IllegalArgumentException("cannot open access log " + access_log_path, e);
+            }
+        }
+        return access_log;
+    }
+}
@@ -0,0 +1,120 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters, gauges and latency histograms of one proxy instance.
+// Everything is updated with LongAdders and atomics from the connection threads and read by JMX or the
+// text scrape endpoint (MetricsServer), so saturation is visible before connections start being refused.
+public class ProxyMetrics implements ProxyMetricsMBean {
+    final LongAdder accepted = new LongAdder();
+    final LongAdder refused = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final AtomicLong active_tunnels = new AtomicLong();
+    final LongAdder bytes_to_upstream = new LongAdder();
+    final LongAdder bytes_to_client = new LongAdder();
+
+    final LatencyHistogram handshake = new LatencyHistogram("handshake");
+    final LatencyHistogram connect = new LatencyHistogram("upstream_connect");
+    final LatencyHistogram first_byte = new LatencyHistogram("time_to_first_byte");
+
+    // values owned by other components (executor queue, upstream pool), read when somebody asks
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    void tunnelOpened() {
+        active_tunnels.incrementAndGet();
+    }
+
+    void tunnelClosed() {
+        active_tunnels.decrementAndGet();
+    }
+
+    // makes the metrics visible to jconsole and other JMX clients
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("sockspy:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    public long getRefusedConnections() {
+        return refused.sum();
+    }
+
+    public long getFailedConnections() {
+        return failed.sum();
+    }
+
+    public long getActiveTunnels() {
+        return active_tunnels.get();
+    }
+
+    public synchronized long getQueueDepth() {
+        LongSupplier depth = gauges.get("executor_queue_depth");
+        return depth == null ? 0 : depth.getAsLong();
+    }
+
+    public long getBytesToUpstream() {
+        return bytes_to_upstream.sum();
+    }
+
+    public long getBytesToClient() {
+        return bytes_to_client.sum();
+    }
+
+    public long getHandshakeP99Micros() {
+        return handshake.percentile(0.99);
+    }
+
+    public long getConnectP99Micros() {
+        return connect.percentile(0.99);
+    }
+
+    public long getTimeToFirstByteP99Micros() {
+        return first_byte.percentile(0.99);
+    }
+
+    public String getReport() {
+        return render();
+    }
+
+    // plain text, one "name value" line per metric
+    public synchronized String render() {
+        StringBuilder out = new StringBuilder();
+        line(out, "sockspy_connections_accepted_total", accepted.sum());
+        line(out, "sockspy_connections_refused_total", refused.sum());
+        line(out, "sockspy_connections_failed_total", failed.sum());
+        line(out, "sockspy_active_tunnels", active_tunnels.get());
+        line(out, "sockspy_bytes_to_upstream_total", bytes_to_upstream.sum());
+        line(out, "sockspy_bytes_to_client_total", bytes_to_client.sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            line(out, "sockspy_" + gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (LatencyHistogram histogram : new LatencyHistogram[]{handshake, connect, first_byte}) {
+            String name = "sockspy_" + histogram.name() + "_micros";
+            line(out, name + "_count", histogram.count());
+            line(out, name + "{quantile=\"0.5\"}", histogram.percentile(0.5));
+            line(out, name + "{quantile=\"0.99\"}", histogram.percentile(0.99));
+            line(out, name + "{quantile=\"0.999\"}", histogram.percentile(0.999));
+            line(out, name + "_max", histogram.max());
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,24 @@
+// JMX view of ProxyMetrics, registered as "sockspy:type=Metrics".
+public interface ProxyMetricsMBean {
+    long getAcceptedConnections();
+
+    long getRefusedConnections();
+
+    long getFailedConnections();
+
+    long getActiveTunnels();
+
+    long getQueueDepth();
+
+    long getBytesToUpstream();
+
+    long getBytesToClient();
+
+    long getHandshakeP99Micros();
+
+    long getConnectP99Micros();
+
+    long getTimeToFirstByteP99Micros();
+
+    String getReport();
+}
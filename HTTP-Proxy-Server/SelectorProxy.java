@@ -0,0 +1,547 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Event-loop alternative to the thread-per-connection handler in Sockspy.
+// The acceptor threads of a Listener hand accepted channels to a handful of selector loops, every tunnel runs the
+// SOCKS4/4a handshake as a small state machine and then relays bytes in both directions with
+// non-blocking reads and writes, so idle tunnels cost a key and two buffers instead of a thread. A side the
+// Shaper wants slowed down is simply not read until its delay is over, and handshake, idle and lifetime
+// deadlines run on the shared TimingWheel, which hands an expiry back to the tunnel's loop.
+public class SelectorProxy {
+    private final Listener listener;
+    private final EventLoop[] loops;
+    // the loop the next accepted channel goes to, advanced by every acceptor
+    private final AtomicInteger next_loop = new AtomicInteger();
+    // SOCKS4a hostnames are resolved asynchronously, the answer is handed back to the owning loop
+    private final HostResolver resolver;
+    private final ProxyMetrics metrics;
+    private final AccessLog log;
+    // direct relay buffers, two per tunnel
+    private final BufferPool buffers;
+    // upstream connects, raced over all addresses of a destination
+    private final UpstreamConnector connector;
+    private final int timeout_ms;
+    // bandwidth limits: a read the shaper wants delayed leaves that side unread until the delay is over
+    private final Shaper shaper;
+    // handshake, idle and lifetime deadlines of every tunnel
+    private final TimingWheel wheel;
+    private final long handshake_timeout_ms;
+    private final long idle_timeout_ms;
+    private final long lifetime_ms;
+
+    public SelectorProxy(ProxyConfig config) throws IOException {
+        this.listener = new Listener(config, true);
+        this.resolver = config.resolver();
+        this.metrics = config.metrics();
+        this.log = config.accessLog();
+        this.buffers = config.relayBuffers();
+        this.connector = config.upstreamConnector();
+        this.timeout_ms = config.timeout_ms;
+        this.shaper = config.shaper();
+        this.wheel = config.timingWheel();
+        this.handshake_timeout_ms = config.handshake_timeout_ms;
+        this.idle_timeout_ms = config.idle_timeout_ms;
+        this.lifetime_ms = config.lifetime_ms;
+        this.loops = new EventLoop[config.loops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    // starts the loops, then binds the listening sockets and accepts on the calling thread forever
+    public void serve() throws IOException {
+        for (EventLoop loop : loops) {
+            Thread t = new Thread(loop, "sockspy-loop-" + loop.id);
+            t.start();
+        }
+        listener.serve(client -> loops[Math.floorMod(next_loop.getAndIncrement(), loops.length)]
+                .register(client.getChannel()));
+    }
+
+    enum State { HANDSHAKE, RESOLVING, CONNECTING, RELAY, CLOSED }
+
+    // a single SOCKS tunnel: the client channel, the upstream channel and one buffer per direction
+    final class Tunnel {
+        final EventLoop loop;
+        final SocketChannel client;
+        SocketChannel upstream;
+        SelectionKey client_key;
+        SelectionKey upstream_key;
+        State state = State.HANDSHAKE;
+        // an expired deadline is handed to the loop, which closes the tunnel
+        final TunnelDeadlines deadlines;
+        final long started = System.nanoTime();
+        long connect_started;
+
+        // client -> upstream, also holds the SOCKS request while handshaking
+        final ByteBuffer to_upstream;
+        // upstream -> client, also holds the SOCKS reply
+        final ByteBuffer to_client;
+        boolean client_eof;
+        boolean upstream_eof;
+        boolean close_after_flush;
+
+        String destination = "-";
+        // opened once the upstream is connected
+        Shaper.Flow flow;
+        // System.nanoTime() until which the client / upstream side is not read, 0 while it may be
+        long client_held_until;
+        long upstream_held_until;
+        boolean held;
+        long bytes_up;
+        long bytes_down;
+        String outcome = "ok";
+
+        // both buffers come from the pool and go back in close()
+        Tunnel(EventLoop loop, SocketChannel client) throws IOException {
+            this.loop = loop;
+            this.client = client;
+            this.to_upstream = buffers.acquire();
+            try {
+                this.to_client = buffers.acquire();
+            } catch (IOException e) {
+                buffers.release(to_upstream);
+                throw e;
+            }
+            this.deadlines = new TunnelDeadlines(wheel, handshake_timeout_ms, idle_timeout_ms, lifetime_ms,
+                    reason -> loop.execute(this, () -> expire(reason)));
+        }
+
+        // tries to parse a complete SOCKS4/4a request out of to_upstream
+        void onHandshakeBytes() throws IOException {
+            ByteBuffer buf = to_upstream;
+            Socks4Decoder request = loop.decoder;
+            int request_end;
+            try {
+                request_end = request.decode(buf, 0, buf.position());
+            } catch (IOException e) {
+                log.message("Connection error: while parsing request: " + e.getMessage());
+                reject();
+                return;
+            }
+            if (request_end == 0) {
+                return;
+            }
+            if (request.command != 1) {
+                log.message("Connection error: while parsing request: Unsupported command " + request.command);
+                reject();
+                return;
+            }
+            // anything the client pipelined after the request belongs to the upstream
+            buf.flip();
+            buf.position(request_end);
+            buf.compact();
+
+            int port_number = request.port;
+            if (request.host_name == null) {
+                connect(new InetAddress[]{request.address()}, port_number);
+            } else {
+                state = State.RESOLVING;
+                client_key.interestOps(0);
+                final String name = request.host_name;
+                resolver.resolve(name).whenComplete((addresses, failure) -> loop.execute(this, () -> {
+                    if (failure != null) {
+                        log.message("Connection error: while connecting to destination: unknown host " + name);
+                        reject();
+                    } else {
+                        connect(addresses, port_number);
+                    }
+                }));
+            }
+        }
+
+        // the connector races the addresses on its own thread and hands the winner back to this loop
+        void connect(InetAddress[] addresses, int port_number) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (addresses == null || addresses.length == 0) {
+                log.message("Connection error: while connecting to destination: unknown host, no addresses");
+                reject();
+                return;
+            }
+            destination = addresses[0].getHostAddress() + ":" + port_number;
+            connect_started = System.nanoTime();
+            state = State.CONNECTING;
+            client_key.interestOps(0);
+            connector.connect(addresses, port_number, timeout_ms).whenComplete((channel, failure) ->
+                    loop.execute(this, () -> onConnectDone(channel, failure)));
+        }
+
+        void onConnectDone(SocketChannel channel, Throwable failure) {
+            if (state == State.CLOSED) {
+                // the handshake timed out while connecting
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                return;
+            }
+            if (failure != null) {
+                log.message("Connection error: while connecting to destination: " + failure.getMessage());
+                reject();
+                return;
+            }
+            upstream = channel;
+            try {
+                destination = ((InetSocketAddress) upstream.getRemoteAddress()).getAddress().getHostAddress()
+                        + ":" + ((InetSocketAddress) upstream.getRemoteAddress()).getPort();
+                upstream_key = upstream.register(loop.selector, 0, this);
+            } catch (IOException e) {
+                log.message("Connection error: while connecting to destination: " + e.getMessage());
+                reject();
+                return;
+            }
+            onConnected();
+        }
+
+        void onConnected() {
+            metrics.connect.recordSince(connect_started);
+            metrics.handshake.recordSince(started);
+            log.message(describe("Successful") + " to " + destination);
+            state = State.RELAY;
+            deadlines.established(true);
+            flow = shaper.open(((InetSocketAddress) client.socket().getRemoteSocketAddress()).getAddress(),
+                    upstream.socket().getInetAddress());
+            to_client.put(new byte[]{0x00, 0x5A, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+            updateInterest();
+        }
+
+        // replies 0x5B and closes the tunnel once the reply was flushed
+        void reject() {
+            if (state == State.CLOSED) {
+                // e.g. a lookup that failed after the handshake timed out, the buffers are gone already
+                return;
+            }
+            metrics.failed.increment();
+            if (outcome.equals("ok")) {
+                outcome = "rejected";
+            }
+            to_client.clear();
+            to_client.put(new byte[]{0x00, 0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+            close_after_flush = true;
+            state = State.RELAY;
+            if (upstream_key != null) {
+                upstream_key.interestOps(0);
+            }
+            client_key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        // moves as many bytes as the sockets accept without blocking
+        void pump(SelectionKey key) throws IOException {
+            if (state == State.HANDSHAKE && key.isReadable()) {
+                if (client.read(to_upstream) < 0) {
+                    close();
+                    return;
+                }
+                onHandshakeBytes();
+                return;
+            }
+            if (state != State.RELAY) {
+                return;
+            }
+            if (key.isReadable()) {
+                if (key == client_key) {
+                    int n = client.read(to_upstream);
+                    if (n < 0) {
+                        client_eof = true;
+                    } else {
+                        bytes_up += n;
+                        metrics.bytes_to_upstream.add(n);
+                        client_held_until = hold(n);
+                        deadlines.touch();
+                    }
+                } else {
+                    int n = upstream.read(to_client);
+                    if (n < 0) {
+                        upstream_eof = true;
+                    } else {
+                        bytes_down += n;
+                        metrics.bytes_to_client.add(n);
+                        upstream_held_until = hold(n);
+                        deadlines.touch();
+                    }
+                }
+            }
+            flush(to_client, client);
+            if (close_after_flush) {
+                if (to_client.position() == 0) {
+                    close();
+                }
+                return;
+            }
+            flush(to_upstream, upstream);
+            // half-close: forward EOF once everything the peer sent has been delivered
+            if (client_eof && to_upstream.position() == 0 && !upstream.socket().isOutputShutdown()) {
+                upstream.shutdownOutput();
+            }
+            if (upstream_eof && to_client.position() == 0 && !client.socket().isOutputShutdown()) {
+                client.shutdownOutput();
+            }
+            if (client_eof && upstream_eof && to_upstream.position() == 0 && to_client.position() == 0) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        // charges n relayed bytes to the shaper, returns until when the side they came from rests (0: it does not)
+        private long hold(int n) {
+            long wait = flow == null ? 0 : flow.take(n);
+            if (wait <= 0) {
+                return 0;
+            }
+            loop.hold(this);
+            return System.nanoTime() + wait;
+        }
+
+        private void flush(ByteBuffer buf, SocketChannel channel) throws IOException {
+            if (buf.position() == 0) {
+                return;
+            }
+            buf.flip();
+            channel.write(buf);
+            buf.compact();
+        }
+
+        // reads are only armed while there is room to store the bytes, writes only while there is something to send
+        void updateInterest() {
+            if (state != State.RELAY || !client_key.isValid()) {
+                return;
+            }
+            int client_ops = 0;
+            int upstream_ops = 0;
+            if (!client_eof && to_upstream.hasRemaining() && client_held_until == 0) client_ops |= SelectionKey.OP_READ;
+            if (to_client.position() > 0) client_ops |= SelectionKey.OP_WRITE;
+            if (!upstream_eof && to_client.hasRemaining() && upstream_held_until == 0) upstream_ops |= SelectionKey.OP_READ;
+            if (to_upstream.position() > 0) upstream_ops |= SelectionKey.OP_WRITE;
+            client_key.interestOps(client_ops);
+            if (upstream_key != null && upstream_key.isValid()) {
+                upstream_key.interestOps(upstream_ops);
+            }
+        }
+
+        void close() {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            deadlines.cancel();
+            metrics.tunnelClosed();
+            log.tunnel(clientName(), destination, bytes_up, bytes_down, (System.nanoTime() - started) / 1_000_000, outcome);
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+            if (upstream != null) {
+                try {
+                    upstream.close();
+                } catch (IOException ignored) {
+                }
+            }
+            buffers.release(to_upstream);
+            buffers.release(to_client);
+            if (flow != null) {
+                flow.close();
+            }
+        }
+
+        // gives back what the constructor took, for a tunnel that never got registered and so was never opened
+        void discard() {
+            state = State.CLOSED;
+            deadlines.cancel();
+            buffers.release(to_upstream);
+            buffers.release(to_client);
+        }
+
+        // an unexpected error while serving the tunnel, only this tunnel is closed
+        void fail(Exception e) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            metrics.failed.increment();
+            log.message("Connection error: " + (e instanceof IOException ? e.getMessage() : e.toString()));
+            outcome = "error";
+            close();
+        }
+
+        // a deadline passed; runs on the loop like everything else that touches the tunnel
+        void expire(String reason) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (reason.equals(TunnelDeadlines.HANDSHAKE)) {
+                metrics.failed.increment();
+                log.message("Connecting error: connection timed out");
+                outcome = "timeout";
+            } else {
+                log.message(describe("Closed") + ": " + reason);
+                outcome = reason;
+            }
+            close();
+        }
+
+        String describe(String prefix) {
+            return prefix + " connection from " + clientName();
+        }
+
+        String clientName() {
+            try {
+                InetSocketAddress remote = (InetSocketAddress) client.getRemoteAddress();
+                return remote.getAddress().getHostAddress() + ":" + remote.getPort();
+            } catch (IOException e) {
+                return "-";
+            }
+        }
+    }
+
+    // a selector thread owning a subset of the tunnels; other threads talk to it through its task queue
+    final class EventLoop implements Runnable {
+        final int id;
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // tunnels with a side held back by the shaper
+        private final List<Tunnel> held = new ArrayList<>();
+        // decodes one request at a time for all tunnels of this loop
+        final Socks4Decoder decoder = new Socks4Decoder();
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // a task of one tunnel; if it throws, that tunnel is closed and the loop goes on
+        void execute(Tunnel tunnel, Runnable task) {
+            execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    tunnel.fail(e);
+                }
+            });
+        }
+
+        void register(SocketChannel client) {
+            execute(() -> {
+                try {
+                    client.configureBlocking(false);
+                    Tunnel tunnel;
+                    try {
+                        tunnel = new Tunnel(this, client);
+                    } catch (IOException e) {
+                        // out of buffer memory, the client is turned away like one beyond the connection limit
+                        metrics.refused.increment();
+                        log.message("Refused connection: " + e.getMessage());
+                        client.close();
+                        return;
+                    }
+                    try {
+                        tunnel.client_key = client.register(selector, SelectionKey.OP_READ, tunnel);
+                    } catch (IOException | RuntimeException e) {
+                        tunnel.discard();
+                        throw e;
+                    }
+                    metrics.tunnelOpened();
+                } catch (IOException | RuntimeException e) {
+                    try {
+                        client.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(selectTimeout());
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            log.message("Selector error: task failed: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Tunnel tunnel = (Tunnel) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            tunnel.pump(key);
+                        } catch (IOException | RuntimeException e) {
+                            // e.g. a CancelledKeyException for a tunnel a deadline just closed
+                            tunnel.fail(e);
+                        }
+                    }
+                    releaseHeld();
+                } catch (IOException | RuntimeException e) {
+                    // the loop thread serves every tunnel registered with it, so it never gives up
+                    log.message("Selector error: " + e);
+                }
+            }
+        }
+
+        void hold(Tunnel tunnel) {
+            if (!tunnel.held) {
+                tunnel.held = true;
+                held.add(tunnel);
+            }
+        }
+
+        // wakes up in time for the earliest held tunnel
+        private long selectTimeout() {
+            long timeout = 1000;
+            long now = System.nanoTime();
+            for (Tunnel tunnel : held) {
+                timeout = earlier(timeout, tunnel.client_held_until, now);
+                timeout = earlier(timeout, tunnel.upstream_held_until, now);
+            }
+            return timeout;
+        }
+
+        private long earlier(long timeout_ms, long until, long now) {
+            return until == 0 ? timeout_ms : Math.min(timeout_ms, Math.max(1, (until - now + 999_999) / 1_000_000));
+        }
+
+        // re-arms the reads whose shaping delay is over
+        private void releaseHeld() {
+            long now = System.nanoTime();
+            Iterator<Tunnel> it = held.iterator();
+            while (it.hasNext()) {
+                Tunnel tunnel = it.next();
+                if (tunnel.client_held_until != 0 && tunnel.client_held_until - now <= 0) {
+                    tunnel.client_held_until = 0;
+                }
+                if (tunnel.upstream_held_until != 0 && tunnel.upstream_held_until - now <= 0) {
+                    tunnel.upstream_held_until = 0;
+                }
+                if (tunnel.state == State.CLOSED || (tunnel.client_held_until == 0 && tunnel.upstream_held_until == 0)) {
+                    it.remove();
+                    tunnel.held = false;
+                    tunnel.updateInterest();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Bandwidth limits of the relay paths: one bucket for the whole proxy, one per client IP and one per
+// destination address. Every tunnel draws the bytes it relays, in both directions, from all three and
+// waits as long as the slowest of them asks. A read shorter than interactive_bytes still counts against
+// the global limit but is not delayed by it, so keystrokes and small requests do not queue behind bulk
+// transfers of other clients; its own client and destination limits still apply.
+// Rates are bytes per second, 0 means unlimited, and all of them can be changed at runtime over JMX as
+// "sockspy:type=Shaper".
+public class Shaper implements ShaperMBean {
+    // how often buckets of departed clients and destinations are dropped
+    static final long SWEEP_MS = 1000;
+
+    private volatile long global_rate;
+    private volatile long client_rate;
+    private volatile long destination_rate;
+    private volatile long burst;
+    private volatile long interactive_bytes;
+
+    private final TokenBucket global = new TokenBucket();
+    private final ConcurrentHashMap<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, TokenBucket> destinations = new ConcurrentHashMap<>();
+
+    final LongAdder delays = new LongAdder();
+    final LongAdder delayed_nanos = new LongAdder();
+
+    public Shaper(long global_rate, long client_rate, long destination_rate, long burst, long interactive_bytes) {
+        this.global_rate = global_rate;
+        this.client_rate = client_rate;
+        this.destination_rate = destination_rate;
+        this.burst = burst;
+        this.interactive_bytes = interactive_bytes;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sockspy-shaper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MS, SWEEP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // the buckets of one tunnel; close() when the tunnel ends
+    public Flow open(InetAddress client, InetAddress destination) {
+        return new Flow(client, attach(clients, client), destination, attach(destinations, destination));
+    }
+
+    private static TokenBucket attach(ConcurrentHashMap<InetAddress, TokenBucket> buckets, InetAddress key) {
+        return buckets.compute(key, (k, bucket) -> {
+            if (bucket == null) {
+                bucket = new TokenBucket();
+            }
+            bucket.refs++;
+            return bucket;
+        });
+    }
+
+    private static void detach(ConcurrentHashMap<InetAddress, TokenBucket> buckets, InetAddress key) {
+        buckets.computeIfPresent(key, (k, bucket) -> {
+            bucket.refs--;
+            return bucket;
+        });
+    }
+
+    // a bucket is kept while a tunnel uses it or while it still holds debt, so reconnecting does not
+    // start a client over with a full burst
+    private void sweep() {
+        clients.forEach((key, bucket) -> clients.computeIfPresent(key, (k, b) -> b.refs == 0 && b.idle() ? null : b));
+        destinations.forEach((key, bucket) -> destinations.computeIfPresent(key, (k, b) -> b.refs == 0 && b.idle() ? null : b));
+    }
+
+    // what one tunnel relays
+    public final class Flow {
+        private final InetAddress client;
+        private final TokenBucket client_bucket;
+        private final InetAddress destination;
+        private final TokenBucket destination_bucket;
+        private boolean closed;
+
+        Flow(InetAddress client, TokenBucket client_bucket, InetAddress destination, TokenBucket destination_bucket) {
+            this.client = client;
+            this.client_bucket = client_bucket;
+            this.destination = destination;
+            this.destination_bucket = destination_bucket;
+        }
+
+        // accounts n relayed bytes and returns the nanoseconds to wait before relaying more
+        public long take(int n) {
+            long wait = Math.max(client_bucket.reserve(n, client_rate, burst),
+                    destination_bucket.reserve(n, destination_rate, burst));
+            long global_wait = global.reserve(n, global_rate, burst);
+            if (n >= interactive_bytes) {
+                wait = Math.max(wait, global_wait);
+            }
+            if (wait > 0) {
+                delays.increment();
+                delayed_nanos.add(wait);
+            }
+            return wait;
+        }
+
+        // take() for blocking relays: sleeps the wait away
+        public void pace(int n) throws IOException {
+            long wait = take(n);
+            if (wait <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while shaping");
+            }
+        }
+
+        // a stream that paces every write
+        public OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                public void write(byte[] b, int off, int len) throws IOException {
+                    pace(len);
+                    out.write(b, off, len);
+                }
+
+                public void write(int b) throws IOException {
+                    pace(1);
+                    out.write(b);
+                }
+            };
+        }
+
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            detach(clients, client);
+            detach(destinations, destination);
+        }
+    }
+
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("sockspy:type=Shaper"));
+        } catch (JMException e) {
+            System.err.println("Could not register shaper MBean: " + e.getMessage());
+        }
+    }
+
+    public long getGlobalRate() {
+        return global_rate;
+    }
+
+    public void setGlobalRate(long rate) {
+        global_rate = rate;
+    }
+
+    public long getClientRate() {
+        return client_rate;
+    }
+
+    public void setClientRate(long rate) {
+        client_rate = rate;
+    }
+
+    public long getDestinationRate() {
+        return destination_rate;
+    }
+
+    public void setDestinationRate(long rate) {
+        destination_rate = rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    public void setBurst(long bytes) {
+        burst = bytes;
+    }
+
+    public long getInteractiveBytes() {
+        return interactive_bytes;
+    }
+
+    public void setInteractiveBytes(long bytes) {
+        interactive_bytes = bytes;
+    }
+
+    public long getDelays() {
+        return delays.sum();
+    }
+
+    public long getDelayedMillis() {
+        return delayed_nanos.sum() / 1_000_000;
+    }
+
+    public int getShapedClients() {
+        return clients.size();
+    }
+
+    public int getShapedDestinations() {
+        return destinations.size();
+    }
+}
@@ -0,0 +1,30 @@
+// JMX view of Shaper, registered as "sockspy:type=Shaper"; rates are bytes per second, 0 is unlimited.
+public interface ShaperMBean {
+    long getGlobalRate();
+
+    void setGlobalRate(long rate);
+
+    long getClientRate();
+
+    void setClientRate(long rate);
+
+    long getDestinationRate();
+
+    void setDestinationRate(long rate);
+
+    long getBurst();
+
+    void setBurst(long bytes);
+
+    long getInteractiveBytes();
+
+    void setInteractiveBytes(long bytes);
+
+    long getDelays();
+
+    long getDelayedMillis();
+
+    int getShapedClients();
+
+    int getShapedDestinations();
+}
@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.net.Socket;
+
+// Socket options applied to one side of every tunnel, client or upstream.
+// Relayed traffic is mostly small writes answering the other side, so Nagle's algorithm only adds a
+// delayed-ACK round trip to each of them; TCP_NODELAY is on unless turned off. Buffer sizes of 0 leave
+// the kernel's default (and its auto-tuning) in place.
+public class SocketTuning {
+    final boolean tcp_nodelay;
+    final int send_buffer;
+    final int receive_buffer;
+
+    public SocketTuning(boolean tcp_nodelay, int send_buffer, int receive_buffer) {
+        this.tcp_nodelay = tcp_nodelay;
+        this.send_buffer = send_buffer;
+        this.receive_buffer = receive_buffer;
+    }
+
+    // best called before connecting: the window scale offered in the SYN depends on the receive buffer, so a
+    // receive buffer above 64KB set on a connected socket may not be fully usable
+    public void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcp_nodelay);
+        if (send_buffer > 0) {
+            socket.setSendBufferSize(send_buffer);
+        }
+        if (receive_buffer > 0) {
+            socket.setReceiveBufferSize(receive_buffer);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// In-place parser of one SOCKS4/4a request: VN CD DSTPORT DSTIP USERID NUL [HOSTNAME NUL].
+// decode() looks at the bytes received so far without copying or consuming them and either reports that
+// more are needed or fills in the fields below. The blocking handler (through HandshakeReader) and the
+// event loops of SelectorProxy both use it, so the two engines accept exactly the same requests.
+public class Socks4Decoder {
+    // VN CD DSTPORT DSTIP, two NULs, and a USERID and a hostname of MAX_FIELD bytes each
+    static final int MAX_FIELD = 255;
+    static final int MAX_REQUEST_LENGTH = 8 + 2 * (MAX_FIELD + 1);
+
+    int command;
+    int port;
+    // DSTIP as a big-endian int, 0.0.0.x with x != 0 marks a socks4a request
+    int ip;
+    // the socks4a hostname, null for a plain socks4 request
+    String host_name;
+
+    // returns the length of the request once buf[offset, offset + length) holds all of it, 0 while it is
+    // still incomplete; a request that can never become valid throws
+    public int decode(ByteBuffer buf, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (buf.get(offset) != 4) {
+            throw new IOException("Unsupported Socks protocol version (got " + Integer.toHexString(buf.get(offset)) + ")");
+        }
+        if (length < 9) {
+            return 0;
+        }
+        int end = offset + length;
+        int user_end = indexOfNul(buf, offset + 8, end);
+        if (user_end < 0) {
+            return incomplete(length);
+        }
+        if (user_end - offset - 8 > MAX_FIELD) {
+            throw new IOException("request too long");
+        }
+        int request_end = user_end + 1;
+        int address = buf.getInt(offset + 4);
+        String name = null;
+        if ((address & 0xffffff00) == 0 && address != 0) {
+            int host_end = indexOfNul(buf, request_end, end);
+            if (host_end < 0) {
+                return incomplete(length);
+            }
+            if (host_end - request_end > MAX_FIELD) {
+                throw new IOException("request too long");
+            }
+            name = text(buf, request_end, host_end);
+            request_end = host_end + 1;
+        }
+        command = buf.get(offset + 1) & 0xff;
+        port = buf.getShort(offset + 2) & 0xffff;
+        ip = address;
+        host_name = name;
+        return request_end - offset;
+    }
+
+    private static int incomplete(int length) throws IOException {
+        if (length >= MAX_REQUEST_LENGTH) {
+            throw new IOException("request too long");
+        }
+        return 0;
+    }
+
+    // DSTIP of a plain socks4 request
+    public InetAddress address() throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+    }
+
+    private static int indexOfNul(ByteBuffer buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the only allocation of a decode, and only for socks4a
+    private static String text(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, to - from, StandardCharsets.US_ASCII);
+        }
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+// One SOCKS5 authentication method (RFC 1928 section 3).
+// The handshake offers the method of the configured authenticator to the client, and once the client
+// picked it, runs the method's sub-negotiation. New methods plug in by implementing this interface and
+// being returned from ProxyConfig.socks5Authenticator().
+public interface Socks5Authenticator {
+    int NO_AUTHENTICATION = 0x00;
+    int USERNAME_PASSWORD = 0x02;
+
+    // the method code sent in the server's choice message
+    int method();
+
+    // runs the sub-negotiation and returns the authenticated user name, or null when the client is refused
+    // (the failure reply has been sent by then)
+    String authenticate(HandshakeReader in, OutputStream out) throws IOException;
+
+    // method 0x00: nothing to negotiate
+    static Socks5Authenticator none() {
+        return new Socks5Authenticator() {
+            public int method() {
+                return NO_AUTHENTICATION;
+            }
+
+            public String authenticate(HandshakeReader in, OutputStream out) {
+                return "-";
+            }
+        };
+    }
+
+    // method 0x02, RFC 1929: VER(1) ULEN UNAME PLEN PASSWD, answered with VER(1) STATUS
+    static Socks5Authenticator usernamePassword(Map<String, String> users) {
+        return new Socks5Authenticator() {
+            public int method() {
+                return USERNAME_PASSWORD;
+            }
+
+            public String authenticate(HandshakeReader in, OutputStream out) throws IOException {
+                int version = in.readByte();
+                String user = new String(in.readBytes(in.readByte()), StandardCharsets.UTF_8);
+                byte[] password = in.readBytes(in.readByte());
+                String expected = users.get(user);
+                // compared in constant time so the reply delay does not give the password away
+                boolean ok = version == 1 && expected != null
+                        && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), password);
+                out.write(new byte[]{0x01, (byte) (ok ? 0x00 : 0x01)});
+                out.flush();
+                return ok ? user : null;
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// The SOCKS5 handshake of RFC 1928 on a blocking client connection.
+// negotiate() picks the authentication method, runs it, and parses the request that follows into the
+// fields below; reply() answers that request. Each message is taken from the HandshakeReader buffer in one
+// piece once its length is known, so a client sending a whole message per segment costs one read each.
+public class Socks5Handshake {
+    static final int VERSION = 5;
+    static final int NO_ACCEPTABLE_METHODS = 0xFF;
+    // commands
+    static final int CONNECT = 0x01;
+    static final int BIND = 0x02;
+    static final int UDP_ASSOCIATE = 0x03;
+    // address types
+    static final int IPV4 = 0x01;
+    static final int DOMAIN = 0x03;
+    static final int IPV6 = 0x04;
+    // reply codes
+    static final int SUCCEEDED = 0x00;
+    static final int GENERAL_FAILURE = 0x01;
+    static final int HOST_UNREACHABLE = 0x04;
+    static final int CONNECTION_REFUSED = 0x05;
+    static final int COMMAND_NOT_SUPPORTED = 0x07;
+    static final int ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+
+    int command;
+    // the destination is either an address or a name still to be resolved
+    InetAddress address;
+    String host_name;
+    int port;
+    String user;
+    // set when the client was refused during the handshake (the refusal was already sent), used as the outcome
+    String failure;
+
+    // reads the greeting, the authentication sub-negotiation and the request
+    static Socks5Handshake negotiate(HandshakeReader in, OutputStream out, Socks5Authenticator authenticator)
+            throws IOException {
+        Socks5Handshake handshake = new Socks5Handshake();
+        // VER NMETHODS METHODS...
+        in.require(2);
+        if (in.readByte() != VERSION) {
+            throw new IOException("not a SOCKS5 greeting");
+        }
+        int methods = in.readByte();
+        in.require(methods);
+        boolean offered = false;
+        for (int i = 0; i < methods; i++) {
+            offered |= in.readByte() == authenticator.method();
+        }
+        if (!offered) {
+            out.write(new byte[]{VERSION, (byte) NO_ACCEPTABLE_METHODS});
+            out.flush();
+            handshake.failure = "no-acceptable-method";
+            return handshake;
+        }
+        out.write(new byte[]{VERSION, (byte) authenticator.method()});
+        out.flush();
+        handshake.user = authenticator.authenticate(in, out);
+        if (handshake.user == null) {
+            handshake.failure = "auth-failed";
+            return handshake;
+        }
+
+        // VER CMD RSV ATYP DST.ADDR DST.PORT
+        in.require(5);
+        if (in.readByte() != VERSION) {
+            throw new IOException("not a SOCKS5 request");
+        }
+        handshake.command = in.readByte();
+        in.readByte();
+        int address_type = in.readByte();
+        switch (address_type) {
+            case IPV4:
+                handshake.address = InetAddress.getByAddress(in.readBytes(4));
+                break;
+            case IPV6:
+                handshake.address = InetAddress.getByAddress(in.readBytes(16));
+                break;
+            case DOMAIN:
+                handshake.host_name = new String(in.readBytes(in.readByte()), StandardCharsets.US_ASCII);
+                break;
+            default:
+                reply(out, ADDRESS_TYPE_NOT_SUPPORTED, null);
+                handshake.failure = "address-type-not-supported";
+                return handshake;
+        }
+        handshake.port = in.readShort();
+        if (handshake.command != CONNECT && handshake.command != UDP_ASSOCIATE) {
+            reply(out, COMMAND_NOT_SUPPORTED, null);
+            handshake.failure = "command-not-supported";
+        }
+        return handshake;
+    }
+
+    // "host:port" of the requested destination, for log records
+    String destination() {
+        return (host_name != null ? host_name : address.getHostAddress()) + ":" + port;
+    }
+
+    // VER REP RSV ATYP BND.ADDR BND.PORT, bound == null sends 0.0.0.0:0
+    static void reply(OutputStream out, int code, InetSocketAddress bound) throws IOException {
+        byte[] address = bound == null ? new byte[4] : bound.getAddress().getAddress();
+        int port = bound == null ? 0 : bound.getPort();
+        byte[] reply = new byte[6 + address.length];
+        reply[0] = VERSION;
+        reply[1] = (byte) code;
+        reply[3] = (byte) (address.length == 4 ? IPV4 : IPV6);
+        System.arraycopy(address, 0, reply, 4, address.length);
+        reply[4 + address.length] = (byte) (port >> 8);
+        reply[5 + address.length] = (byte) port;
+        out.write(reply);
+        out.flush();
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Datagram relay behind a SOCKS5 UDP ASSOCIATE (RFC 1928 section 7).
+// One UDP socket serves the association: datagrams from the client carry a SOCKS header naming their
+// destination, which is stripped before they are sent on; datagrams from a host the client has written
+// to get a header naming that host and go back to the client. Anything else is dropped. The association
+// lasts as long as the client's TCP connection, the handler calls close() when that one ends.
+public class Socks5UdpRelay implements Runnable {
+    static final int MAX_DATAGRAM = 65535;
+    // hosts the client sent to, and so may answer it; the oldest are forgotten beyond this
+    static final int MAX_PEERS = 1024;
+
+    private final DatagramSocket socket;
+    private final InetAddress client_address;
+    // 0 until the first datagram when the client did not say which port it sends from
+    private int client_port;
+    private final HostResolver resolver;
+    private final int timeout_ms;
+    private final Map<InetSocketAddress, Boolean> peers = new LinkedHashMap<InetSocketAddress, Boolean>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Boolean> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+    // written by the relay thread only, read once it finished
+    private volatile long bytes_to_upstream;
+    private volatile long bytes_to_client;
+
+    // binds on the address the client reached the proxy on, so that address is reachable from the client
+    public Socks5UdpRelay(InetAddress local_address, InetAddress client_address, int client_port,
+                          HostResolver resolver, int timeout_ms) throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(local_address, 0));
+        this.client_address = client_address;
+        this.client_port = client_port;
+        this.resolver = resolver;
+        this.timeout_ms = timeout_ms;
+    }
+
+    public InetSocketAddress localAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public void run() {
+        byte[] buf = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setData(buf);
+                socket.receive(packet);
+                InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+                if (from.getAddress().equals(client_address) && (client_port == 0 || client_port == from.getPort())) {
+                    client_port = from.getPort();
+                    fromClient(packet);
+                } else if (client_port != 0 && peers.containsKey(from)) {
+                    toClient(packet, from);
+                }
+            } catch (IOException e) {
+                // a malformed or undeliverable datagram is dropped, closing the socket ends the loop
+            }
+        }
+    }
+
+    // RSV(2) FRAG ATYP DST.ADDR DST.PORT DATA
+    private void fromClient(DatagramPacket packet) throws IOException {
+        byte[] buf = packet.getData();
+        int length = packet.getLength();
+        if (length < 4 || buf[2] != 0) {
+            // fragmented datagrams are optional in the RFC and not supported
+            return;
+        }
+        int i = 4;
+        InetAddress address;
+        switch (buf[3]) {
+            case Socks5Handshake.IPV4:
+                address = InetAddress.getByAddress(slice(buf, i, 4, length));
+                i += 4;
+                break;
+            case Socks5Handshake.IPV6:
+                address = InetAddress.getByAddress(slice(buf, i, 16, length));
+                i += 16;
+                break;
+            case Socks5Handshake.DOMAIN:
+                int name_length = i < length ? buf[i] & 0xff : 0;
+                String name = new String(slice(buf, i + 1, name_length, length), StandardCharsets.US_ASCII);
+                i += 1 + name_length;
+                address = resolve(name);
+                break;
+            default:
+                return;
+        }
+        if (i + 2 > length) {
+            return;
+        }
+        int port = ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff);
+        i += 2;
+        InetSocketAddress destination = new InetSocketAddress(address, port);
+        peers.put(destination, Boolean.TRUE);
+        socket.send(new DatagramPacket(buf, i, length - i, destination));
+        bytes_to_upstream += length - i;
+    }
+
+    private void toClient(DatagramPacket packet, InetSocketAddress from) throws IOException {
+        byte[] address = from.getAddress().getAddress();
+        int header = 6 + address.length;
+        int length = packet.getLength();
+        if (header + length > MAX_DATAGRAM) {
+            return;
+        }
+        byte[] out = new byte[header + length];
+        out[3] = (byte) (address.length == 4 ? Socks5Handshake.IPV4 : Socks5Handshake.IPV6);
+        System.arraycopy(address, 0, out, 4, address.length);
+        out[4 + address.length] = (byte) (from.getPort() >> 8);
+        out[5 + address.length] = (byte) from.getPort();
+        System.arraycopy(packet.getData(), 0, out, header, length);
+        socket.send(new DatagramPacket(out, out.length, client_address, client_port));
+        bytes_to_client += length;
+    }
+
+    private static byte[] slice(byte[] buf, int from, int n, int length) throws IOException {
+        if (from + n > length) {
+            throw new IOException("truncated datagram header");
+        }
+        byte[] bytes = new byte[n];
+        System.arraycopy(buf, from, bytes, 0, n);
+        return bytes;
+    }
+
+    private InetAddress resolve(String name) throws IOException {
+        try {
+            return resolver.resolve(name).get(timeout_ms, TimeUnit.MILLISECONDS)[0];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while resolving " + name);
+        } catch (Exception e) {
+            throw new IOException("cannot resolve " + name);
+        }
+    }
+
+    public void close() {
+        socket.close();
+    }
+
+    public long bytesToUpstream() {
+        return bytes_to_upstream;
+    }
+
+    public long bytesToClient() {
+        return bytes_to_client;
+    }
+}
@@ -1,240 +1,558 @@
 import java.io.*;
 import java.nio.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class Sockspy {
     public static void main(String[] args) throws IOException {
-        ServerSocket proxy_socket = new ServerSocket(8080);
-        BlockingQueue q = new ArrayBlockingQueue(20);
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(20,20,20,TimeUnit.SECONDS, q);
-        // the following loop accepts up to 20 concurrent connections
-        while (true) {
-            Socket client_socket = proxy_socket.accept();
-            if(executor.getActiveCount() >= 20){
-                System.err.println("Active connections count reached capacity, refused connection" + client_socket.getPort());
-                client_socket.close();
-            }
-            else {
-                ConnectionHandler handler = new ConnectionHandler(client_socket);
-                executor.execute(handler);
+        ProxyConfig config = ProxyConfig.parse(args);
+        config.resolver();
+        UpstreamPool upstream_pool = config.upstreamPool();
+        AccessLog log = config.accessLog();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> log.message(upstream_pool.stats())));
+        ProxyMetrics metrics = config.metrics();
+        metrics.gauge("upstream_pool_hits_total", upstream_pool::hits);
+        metrics.gauge("upstream_pool_misses_total", upstream_pool::misses);
+        metrics.gauge("upstream_pool_evictions_total", upstream_pool::evictions);
+        metrics.gauge("upstream_pool_destinations", upstream_pool::destinations);
+        metrics.gauge("connect_fallbacks_total", config.upstreamConnector().fallbacks::sum);
+        metrics.gauge("connect_fast_failures_total", config.upstreamConnector().fast_failures::sum);
+        if (config.resolver() instanceof CachingResolver) {
+            metrics.gauge("dns_cache_entries", ((CachingResolver) config.resolver())::size);
+        }
+        metrics.gauge("access_log_dropped", log::dropped);
+        BufferPool[] pools = {config.relayBuffers(), config.heapBuffers(), config.handshakeBuffers()};
+        metrics.gauge("buffer_memory_bytes", config.bufferBudget().used::get);
+        metrics.gauge("buffer_allocations_total", () -> Arrays.stream(pools).mapToLong(p -> p.allocated.sum()).sum());
+        metrics.gauge("buffer_exhausted_total", () -> Arrays.stream(pools).mapToLong(p -> p.exhausted.sum()).sum());
+        metrics.gauge("buffer_leaks_total", () -> Arrays.stream(pools).mapToLong(p -> p.leaked.sum()).sum());
+        metrics.gauge("buffer_double_releases_total",
+                () -> Arrays.stream(pools).mapToLong(p -> p.double_releases.sum()).sum());
+        metrics.gauge("shaper_delays_total", config.shaper().delays::sum);
+        metrics.gauge("shaper_delayed_ms_total", () -> config.shaper().delayed_nanos.sum() / 1_000_000);
+        HttpCache cache = config.httpCache();
+        if (cache != null) {
+            metrics.gauge("cache_hits_total", cache.hits::sum);
+            metrics.gauge("cache_misses_total", cache.misses::sum);
+            metrics.gauge("cache_revalidated_total", cache.revalidated::sum);
+            metrics.gauge("cache_stores_total", cache.stores::sum);
+            metrics.gauge("cache_disk_reads_total", cache.disk_reads::sum);
+            metrics.gauge("cache_memory_bytes", cache::memoryBytes);
+            metrics.gauge("cache_disk_bytes", cache::diskBytes);
+        }
+        HeaderFilterChain header_filters = config.headerFilters();
+        if (!header_filters.isEmpty()) {
+            metrics.gauge("inspect_offloaded_total", header_filters.offloaded::sum);
+            metrics.gauge("inspect_dropped_total", header_filters.dropped::sum);
+            metrics.gauge("inspect_queue_depth", header_filters::queued);
+        }
+        metrics.gauge("timers_pending", config.timingWheel()::pending);
+        metrics.gauge("timers_expired_total", config.timingWheel().expired::sum);
+        metrics.registerMBean();
+        config.shaper().registerMBean();
+        if (config.metrics_port > 0) {
+            MetricsServer.start(metrics, config.metrics_port);
+        }
+        if (config.mode == ProxyConfig.Mode.NIO) {
+            new SelectorProxy(config).serve();
+            return;
+        }
+        ExecutorService executor = createExecutor(config);
+        if (executor instanceof ThreadPoolExecutor) {
+            metrics.gauge("executor_queue_depth", () -> ((ThreadPoolExecutor) executor).getQueue().size());
+        }
+        // a slot is held for the whole life of a tunnel, connections beyond max_connections queue for one
+        AdmissionController admission = new AdmissionController(config.max_connections, config.maxPerClient(),
+                config.admission_queue, config.admission_queue_timeout_ms, config.shed_target_ms, executor, metrics, log);
+        metrics.gauge("admission_queue_depth", admission::queued);
+        metrics.gauge("admission_wait_average_ms", admission::waitAverageMs);
+        metrics.gauge("admission_queued_total", admission.queued_total::sum);
+        metrics.gauge("admission_timed_out_total", admission.timed_out::sum);
+        metrics.gauge("admission_shed_total", admission.shed::sum);
+        metrics.gauge("admission_client_limited_total", admission.client_limited::sum);
+        // sockets accepted through a channel let the raw relay use direct buffers
+        new Listener(config, config.raw_relay).serve(
+                client_socket -> admission.submit(client_socket, new ConnectionHandler(client_socket, config)));
+    }
+
+    // a virtual thread per tunnel when the runtime has them, otherwise the fixed platform thread pool
+    private static ExecutorService createExecutor(ProxyConfig config) {
+        if (config.mode == ProxyConfig.Mode.VIRTUAL) {
+            ExecutorService virtual_threads = ProxyConfig.virtualThreads();
+            if (virtual_threads != null) {
+                return virtual_threads;
             }
+            System.err.println("Virtual threads are not available on this runtime, using " +
+                    config.threads + " platform threads");
         }
+        // the queue only has to hold handlers between admission and a free thread
+        return new ThreadPoolExecutor(config.threads, config.threads, 20, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.max_connections));
     }
 
     static class ConnectionHandler extends Thread {
         Socket client_socket;
+        ProxyConfig config;
+        ProxyMetrics metrics;
+        AccessLog log;
+        // what goes into this tunnel's access log record
+        long bytes_up;
+        long bytes_down;
+        String destination_name = "-";
+        // the destination as the client asked for it, part of every HTTP cache key
+        String origin;
+        String outcome = "ok";
+        // the sockets are closed by the timing wheel when a deadline passes, which ends any blocked read
+        TunnelDeadlines deadlines;
+        volatile Socket upstream_socket;
+        // between HTTP exchanges only the client is waited for, so an idle timeout leaves the upstream
+        // connection intact for the pool
+        volatile boolean awaiting_request;
 
-        public ConnectionHandler(Socket client_socket) {
+        public ConnectionHandler(Socket client_socket, ProxyConfig config) {
             this.client_socket = client_socket;
+            this.config = config;
+            this.metrics = config.metrics();
+            this.log = config.accessLog();
         }
 
         public void run() {
-            Socket destination = new Socket();
+            long started = System.nanoTime();
+            metrics.tunnelOpened();
+            Socket destination = null;
+            InetSocketAddress destination_address = null;
+            // set once an HTTP exchange completed in a way that leaves the upstream connection reusable
+            boolean reuse_destination = false;
+            // pooled buffers, returned when the tunnel ends
+            HandshakeReader handshake = null;
+            HttpMessageReader from_client = null;
+            HttpMessageReader from_host = null;
+            // bandwidth limits of this tunnel, from the moment it relays
+            Shaper.Flow flow = null;
+            deadlines = new TunnelDeadlines(config.timingWheel(), config.handshake_timeout_ms, config.idle_timeout_ms,
+                    config.lifetime_ms, reason -> closeOnDeadline());
             try {
                 // parsing connection request from client
-                client_socket.setSoTimeout(5000);
-                InputStream inputStream = client_socket.getInputStream();
-                boolean ver_4a = false;
-
-                byte[] version = new byte[1];
-                inputStream.read(version);
-                // got socks version 5
-                if (version[0] == 5) {
-                    PrintWriter out = new PrintWriter(client_socket.getOutputStream());
-                    System.err.println("Connection error: while parsing request: Unsupported " +
-                            "Socks protocol version (got 05)");
-                    System.err.println(terminate_connection("Closing"));
-                    char[] cbuf = {0x00, 0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-                    out.write(cbuf);
-                    out.close();
-                    inputStream.close();
-                    client_socket.close();
-                    return;
-                }
-                // got a wrong version which is not equal to 5
-                if (version[0] != 4) {
-                    System.err.println("Connection error: while parsing request: Unsupported " +
-                            "Socks protocol version (got " + Integer.toHexString(version[0]) + ")");
-                    System.err.println(terminate_connection("Closing"));
-                    inputStream.close();
+                handshake = new HandshakeReader(client_socket.getInputStream(), config.handshakeBuffers());
+                OutputStream client_out = client_socket.getOutputStream();
+                int version = handshake.peek(0);
+                // the requested destination: an address, or a host name still to be resolved
+                InetAddress host = null;
+                String host_name = null;
+                int port_number;
+                if (version == 5) {
+                    Socks5Handshake request = Socks5Handshake.negotiate(handshake, client_out,
+                            config.socks5Authenticator());
+                    if (request.failure != null) {
+                        log.message("Connection error: while parsing request: Socks5 handshake failed (" +
+                                request.failure + ")");
+                        metrics.failed.increment();
+                        outcome = request.failure;
+                        client_socket.close();
+                        return;
+                    }
+                    destination_name = request.destination();
+                    if (request.command == Socks5Handshake.UDP_ASSOCIATE) {
+                        associateUdp(handshake, client_out, request, started);
+                        return;
+                    }
+                    host = request.address;
+                    host_name = request.host_name;
+                    port_number = request.port;
+                } else if (version == 4) {
+                    Socks4Decoder request = new Socks4Decoder();
+                    handshake.decode(request);
+                    port_number = request.port;
+                    // bonus part - socks4a extension
+                    host_name = request.host_name;
+                    if (host_name == null) {
+                        host = request.address();
+                    }
+                } else {
+                    // got a version which is neither 4 nor 5
+                    log.message("Connection error: while parsing request: Unsupported " +
+                            "Socks protocol version (got " + Integer.toHexString(version) + ")");
+                    metrics.failed.increment();
+                    outcome = "bad-request";
                     client_socket.close();
                     return;
                 }
-                byte[] command = new byte[1];
-                inputStream.read(command);
-                byte[] port = new byte[2];
-                inputStream.read(port);
-                byte[] IP = new byte[4];
-                inputStream.read(IP);
-
-                // reading remaining bytes from request
-                byte[] current = new byte[1];
-                inputStream.read(current);
-                while (current[0] != 0x00) {
-                    inputStream.read(current);
-                }
-
-                // bonus part - socks4a extension
-                String host_name = "";
-                if (IP[0] == 0 && IP[1] == 0 && IP[2] == 0 && IP[3] != 0) {
-                    ver_4a = true;
-                    byte[] curr = new byte[1];
-                    inputStream.read(curr);
-                    while (curr[0] != 0) {
-                        host_name += (char) (curr[0]);
-                        inputStream.read(curr);
-                    }
-                }
-                // creating connection to server
-                int port_number = ((port[0] & 0xff) << 8) | (port[1] & 0xff);
-                //byte[] arr = new byte[4];
-                InetAddress host = InetAddress.getByAddress(IP);
 
                 try {
-                    // In case we are using version 4 without the extension, the connection will be made using the given IP
-                    if (!ver_4a) {
-                        destination.connect(new InetSocketAddress(host.getHostAddress(), port_number), 5000);
+                    // In case we got a host name (socks4a or a socks5 domain), the connection will be raced over
+                    // the addresses it resolves to, otherwise the connection will be made using the given IP
+                    InetAddress[] addresses;
+                    origin = (host_name != null ? host_name : host.getHostAddress()) + ":" + port_number;
+                    if (host_name != null) {
+                        addresses = resolveHost(host_name);
+                        destination_address = InetSocketAddress.createUnresolved(host_name, port_number);
+                    } else {
+                        addresses = new InetAddress[]{host};
+                        destination_address = new InetSocketAddress(host, port_number);
                     }
-                    // In case we are using socks4a, the connection will be done using the name of the host found
-                    else {
-                        destination.connect(new InetSocketAddress(host.getByName(host_name), port_number), 5000);
+                    long connect_started = System.nanoTime();
+                    // raw tunnels are opaque so they always get a connection of their own
+                    if (config.raw_relay) {
+                        destination = config.upstreamConnector().open(addresses, port_number, config.timeout_ms);
+                    } else {
+                        destination = config.upstreamPool().acquire(destination_address, addresses, config.timeout_ms);
                     }
-                    // This will catch the case in which the IP address is not valid
-                } catch (SocketTimeoutException e) {
-                    PrintWriter out = new PrintWriter(client_socket.getOutputStream());
-                    System.err.println("Connection error: while connecting to destination: connect timed out");
-                    System.err.println(terminate_connection("Closing"));
-                    char[] cbuf = {0x00, 0x5B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-                    out.write(cbuf);
-                    out.close();
-                    inputStream.close();
+                    upstream_socket = destination;
+                    destination_name = destination.getInetAddress().getHostAddress() + ":" + port_number;
+                    metrics.connect.recordSince(connect_started);
+                    // This will catch the case in which the IP address is not valid or the host name is unknown
+                } catch (SocketTimeoutException | UnknownHostException | ConnectException e) {
+                    log.message("Connection error: while connecting to destination: " +
+                            (e instanceof UnknownHostException ? "unknown host " + host_name
+                                    : e instanceof ConnectException ? "connection refused" : "connect timed out"));
+                    metrics.failed.increment();
+                    outcome = e instanceof UnknownHostException ? "unknown-host"
+                            : e instanceof ConnectException ? "connection-refused" : "connect-timeout";
+                    reply(client_out, version, e instanceof ConnectException
+                            ? Socks5Handshake.CONNECTION_REFUSED : Socks5Handshake.HOST_UNREACHABLE, null);
                     client_socket.close();
                     return;
                 }
-                destination.setSoTimeout(5000);
                 // this message represents a successful connection
-                String message = terminate_connection("Successful") + " to " + host.getHostAddress() + ":" + port_number;
-                System.err.println(message);
+                log.message(terminate_connection("Successful") + " to " + destination_name);
 
                 // connection reply to client
-                PrintWriter out = new PrintWriter(client_socket.getOutputStream(), true);
-                char[] response = {0x00, 0x5A, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-                out.write(response);
-                out.flush();
-
-                // sending http request from client to host
-
-                PrintWriter out_to_host = new PrintWriter(destination.getOutputStream());
-                BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
-
-                String line = in.readLine();
-                String[] authorization = new String[3];
-
-                while (line != null && line.length() != 0) {
-                    // checking if the current line holds the credentials
-                    String[] prefix = line.split(" ");
-                    // checking for the user:password part
-                    if (prefix[0].equals("Authorization:")) {
-                        byte[] credDecoded = Base64.getDecoder().decode(prefix[2]);
-                        authorization[0] = new String(credDecoded, StandardCharsets.UTF_8);
-                    }
-                    // checking for the host part
-                    if (prefix[0].equals("Host:")) {
-                        authorization[1] = prefix[1];
-                    }
-                    // checking for the path part
-                    if (prefix[0].equals("GET")) {
-                        authorization[2] = prefix[1];
+                reply(client_out, version, Socks5Handshake.SUCCEEDED, destination);
+                metrics.handshake.recordSince(started);
+                deadlines.established(true);
+                flow = config.shaper().open(client_socket.getInetAddress(), destination.getInetAddress());
+
+                // raw mode: relay bytes in both directions until either side closes
+                if (config.raw_relay) {
+                    // whatever the client sent right behind its request goes first
+                    sentUp(handshake.drainTo(destination.getOutputStream()));
+                    ByteRelay relay = new ByteRelay(client_socket, destination, config.relayBuffers(), config.heapBuffers(),
+                            flow, deadlines, config.pumpExecutor());
+                    try {
+                        relay.run();
+                    } finally {
+                        sentUp(relay.bytesToUpstream());
+                        sentDown(relay.bytesToClient());
                     }
-                    out_to_host.write(line + "\r\n");
-                    line = in.readLine();
-                }
-                // in case a password was found - print it
-                if(authorization[0] != null) System.err.println("Password Found! http://" + authorization[0] +
-                        "@" + authorization[1] + authorization[2]);
-                out_to_host.write(line + "\r\n");
-                out_to_host.flush();
-
-                // sending http response from host to client
-                BufferedReader in_from_host = new BufferedReader(new InputStreamReader(destination.getInputStream()));
-                line = in_from_host.readLine();
-                out.write(line + "\r\n");
-                int content_length = 0;
-                boolean transfer_encoding = false;
-                // reading & writing headers from host to client
-                while (line != null && line.length() != 0) {
-                    // catching content length
-                    String[] line_array = line.split(" ");
-                    if (line_array[0].equals("Content-Length:")) {
-                        content_length = Integer.parseInt(line_array[1]);
+                    client_socket.close();
+                    return;
+                }
+
+                // forwarding http exchanges from client to host and back for as long as both sides keep the
+                // connection alive; pipelined requests simply wait in the client reader's buffer
+                OutputStream out_to_host = deadlines.track(flow.wrap(destination.getOutputStream()));
+                OutputStream out_to_client = deadlines.track(flow.wrap(client_out));
+                from_client = new HttpMessageReader(handshake.remaining(), config.heapBuffers());
+                from_host = new HttpMessageReader(destination.getInputStream(), config.heapBuffers());
+                int exchanges = 0;
+                while (true) {
+                    HttpHead request;
+                    awaiting_request = true;
+                    deadlines.idleTimeout(config.keepalive_timeout_ms);
+                    try {
+                        request = from_client.readHead();
+                    } catch (IOException e) {
+                        // an idle keep-alive client, closing it is the normal end of the tunnel
+                        if (exchanges == 0 || deadlines.expired() == null) {
+                            throw e;
+                        }
+                        break;
                     }
-                    if (line_array[0].equals("Transfer-Encoding:") && line_array[1].equals("chunked")) {
-                        transfer_encoding = true;
+                    if (request == null) {
+                        break;
                     }
-                    line = in_from_host.readLine();
-                    out.write(line + "\r\n");
-                    in_from_host.mark(1000);
-                }
-                out.flush();
-                // reading & writing content from host to client
-                if (content_length > 0) {
-                    char[] cbuf = new char[content_length];
-                    in_from_host.reset();
-                    in_from_host.read(cbuf);
-                    out.write(cbuf);
-                    out.flush();
-                }
-                // in case content-length is not given as a header
-                if (transfer_encoding) {
-                    line = in_from_host.readLine();
-                    out.write(line + "\n");
-                    content_length = Integer.parseInt(line, 16);
-                    int byte_counter = 0;
-                    while (content_length != 0) {
-                        while (byte_counter < content_length) {
-                            line = in_from_host.readLine();
-                            out.write(line + "\n");
-                            //byte_counter += line.length();
-                            byte_counter += line.getBytes().length + 1;
-                        }
-                        line = in_from_host.readLine();
-                        out.write(line + "\n");
-                        content_length = Integer.parseInt(line, 16);
+                    awaiting_request = false;
+                    deadlines.idleTimeout(config.idle_timeout_ms);
+                    deadlines.touch();
+                    reuse_destination = false;
+                    boolean keep_alive = forwardExchange(request, from_client, out_to_host, from_host, out_to_client,
+                            destination, flow);
+                    exchanges++;
+                    if (!keep_alive) {
+                        break;
                     }
-                    line = in_from_host.readLine();
-                    out.write(line + "\n");
-                    out.flush();
+                    // the host's side of the connection is at a message boundary, so it can serve another tunnel
+                    reuse_destination = from_host.buffered() == 0;
                 }
-                System.err.println(terminate_connection("Closing") + " to " + host.getHostAddress() + ":" + port_number);
                 try {
-                    in.close();
-                    in_from_host.close();
-                    out.close();
-                    out_to_host.close();
+                    client_out.close();
                     client_socket.close();
-                    destination.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    log.message("cause: " + e);
                 }
 
             }
             //  This catch statement will catch the case in which a socket timed out
             catch (SocketTimeoutException e) {
-                System.err.println("Connecting error: connection timed out");
-                System.err.println(terminate_connection("Closing"));
+                metrics.failed.increment();
+                log.message("Connecting error: connection timed out");
+                outcome = "timeout";
                 try {
                     client_socket.close();
-                    destination.close();
+                    if (destination != null) {
+                        destination.close();
+                    }
                 } catch (IOException ex) {
-                    ex.printStackTrace();
+                    log.message("cause: " + ex);
+                }
+            } catch (IOException e) {
+                String expired = deadlines.expired();
+                if (TunnelDeadlines.HANDSHAKE.equals(expired)) {
+                    metrics.failed.increment();
+                    log.message("Connecting error: connection timed out");
+                    outcome = "timeout";
+                } else if (expired != null) {
+                    log.message(terminate_connection("Closed") + ": " + expired);
+                    outcome = expired;
+                } else {
+                    metrics.failed.increment();
+                    log.message("Connection error: " + e);
+                    outcome = "error";
+                }
+                try {
+                    client_socket.close();
+                } catch (IOException ignored) {
+                }
+            } finally {
+                deadlines.cancel();
+                if (handshake != null) {
+                    handshake.release();
+                }
+                if (from_client != null) {
+                    from_client.release();
+                }
+                if (from_host != null) {
+                    from_host.release();
+                }
+                if (flow != null) {
+                    flow.close();
+                }
+                metrics.tunnelClosed();
+                log.tunnel(clientName(), destination_name, bytes_up, bytes_down,
+                        (System.nanoTime() - started) / 1_000_000, outcome);
+                // pooled upstream connections go back to the pool or are closed through it, raw ones are
+                // closed here however the tunnel ended
+                if (destination != null && config.raw_relay) {
+                    try {
+                        destination.close();
+                    } catch (IOException ignored) {
+                    }
+                } else if (destination != null) {
+                    if (reuse_destination) {
+                        config.upstreamPool().release(destination_address, destination);
+                    } else {
+                        config.upstreamPool().discard(destination_address, destination);
+                    }
+                }
+            }
+        }
+
+        // runs on the wheel thread: the blocked reads fail and run() winds the tunnel up
+        private void closeOnDeadline() {
+            try {
+                client_socket.close();
+            } catch (IOException ignored) {
+            }
+            Socket upstream = upstream_socket;
+            if (upstream != null && !awaiting_request) {
+                try {
+                    upstream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        // answers the request in the client's protocol: 00 5A / 00 5B for socks4, the socks5 reply code otherwise
+        private void reply(OutputStream client_out, int version, int socks5_code, Socket destination)
+                throws IOException {
+            if (version == 5) {
+                Socks5Handshake.reply(client_out, socks5_code,
+                        destination == null ? null : (InetSocketAddress) destination.getLocalSocketAddress());
+                return;
+            }
+            byte status = socks5_code == Socks5Handshake.SUCCEEDED ? (byte) 0x5A : (byte) 0x5B;
+            client_out.write(new byte[]{0x00, status, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+            client_out.flush();
+        }
+
+        // socks5 UDP ASSOCIATE: datagrams are relayed for as long as the client keeps this connection open
+        private void associateUdp(HandshakeReader handshake, OutputStream client_out, Socks5Handshake request,
+                                  long started) throws IOException {
+            Socks5UdpRelay relay;
+            try {
+                relay = new Socks5UdpRelay(client_socket.getLocalAddress(), client_socket.getInetAddress(),
+                        request.port, config.resolver(), config.timeout_ms);
+            } catch (SocketException e) {
+                log.message("Connection error: cannot open a UDP relay: " + e.getMessage());
+                metrics.failed.increment();
+                outcome = "error";
+                Socks5Handshake.reply(client_out, Socks5Handshake.GENERAL_FAILURE, null);
+                client_socket.close();
+                return;
+            }
+            destination_name = "udp:" + relay.localAddress().getPort();
+            Thread relay_thread = new Thread(relay, "sockspy-udp-" + relay.localAddress().getPort());
+            relay_thread.setDaemon(true);
+            relay_thread.start();
+            Socks5Handshake.reply(client_out, Socks5Handshake.SUCCEEDED, relay.localAddress());
+            deadlines.established(false);
+            metrics.handshake.recordSince(started);
+            log.message(terminate_connection("Successful") + " to UDP relay on port " + relay.localAddress().getPort());
+            try {
+                // the client sends nothing more on this connection, its end is the end of the association
+                InputStream control = handshake.remaining();
+                byte[] discard = new byte[256];
+                while (control.read(discard) >= 0) {
+                    // ignored
                 }
             } catch (IOException e) {
-                System.err.println("cause: " + e.getCause());
-                e.printStackTrace();
+                // a reset control connection ends the association just the same
+            } finally {
+                relay.close();
+                try {
+                    relay_thread.join(config.timeout_ms);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sentUp(relay.bytesToUpstream());
+                sentDown(relay.bytesToClient());
+                client_socket.close();
+            }
+        }
+
+        // forwards one request and its response, returns whether both sides may carry another exchange
+        private boolean forwardExchange(HttpHead request, HttpMessageReader from_client, OutputStream out_to_host,
+                                        HttpMessageReader from_host, OutputStream client_out, Socket destination,
+                                        Shaper.Flow flow) throws IOException {
+            HeaderFilterChain header_filters = config.headerFilters();
+            if (!header_filters.isEmpty()) {
+                header_filters.inspect(request);
+            }
+            String method = request.method();
+            boolean keep_alive = request.keepAlive();
+            long request_body = HttpMessageReader.bodyLength(request, method);
+            // a cached response answers a GET on its own while it is fresh, and is revalidated when stale
+            HttpCache cache = config.httpCache();
+            String cache_key = null;
+            HttpCache.Entry cached = null;
+            if (cache != null && request_body == 0 && HttpCache.cacheableRequest(request)) {
+                cache_key = HttpCache.key(origin, request);
+                cached = cache.lookup(cache_key);
+                if (cached != null && cached.isFresh(System.currentTimeMillis()) && !HttpCache.requiresRevalidation(request)) {
+                    cache.hits.increment();
+                    sentDown(cache.writeTo(cached, client_out, keep_alive));
+                    return keep_alive;
+                }
+                cache.misses.increment();
+                if (cached != null && cached.hasValidator() && !HttpCache.isConditional(request)) {
+                    request = HttpCache.conditional(request, cached);
+                } else {
+                    cached = null;
+                }
             }
+            request.writeTo(out_to_host);
+            out_to_host.flush();
+            sentUp(request.length);
+            long request_sent = System.nanoTime();
+
+            HttpHead response = null;
+            // a client that expects 100-continue holds its body back until the host agrees
+            if (request_body != 0 && request.hasToken("Expect", "100-continue")) {
+                response = from_host.readHead();
+                metrics.first_byte.recordSince(request_sent);
+                if (response != null && response.status() == 100) {
+                    response.writeTo(client_out);
+                    sentDown(response.length);
+                    sentUp(from_client.forwardBody(request_body, out_to_host));
+                    response = from_host.readHead();
+                } else {
+                    // the body may still follow on the client side, so the exchange cannot be reused
+                    keep_alive = false;
+                }
+            } else {
+                sentUp(from_client.forwardBody(request_body, out_to_host));
+                response = from_host.readHead();
+                metrics.first_byte.recordSince(request_sent);
+            }
+            // other interim responses are forwarded and followed by the final one
+            while (response != null && response.status() >= 100 && response.status() < 200 && response.status() != 101) {
+                response.writeTo(client_out);
+                sentDown(response.length);
+                response = from_host.readHead();
+            }
+            if (response == null) {
+                throw new IOException("destination closed the connection without a response");
+            }
+            long response_delay_ms = (System.nanoTime() - request_sent) / 1_000_000;
+            keep_alive &= response.keepAlive();
+            long response_body = HttpMessageReader.bodyLength(response, method);
+            if (cached != null && response.status() == 304) {
+                // the conditional request was ours, the client gets the refreshed entry
+                sentDown(cache.writeTo(cache.refresh(cached, response, response_delay_ms), client_out, keep_alive));
+                return keep_alive;
+            }
+            HttpCache.Capture capture = null;
+            if (cache_key != null && cache.cacheableResponse(response, response_body)) {
+                capture = new HttpCache.Capture(client_out, response_body);
+            }
+            response.writeTo(client_out);
+            sentDown(response.length);
+            if (response.status() == 101) {
+                // switching protocols (e.g. a WebSocket upgrade), from here on the tunnel is opaque
+                from_host.drainTo(client_out);
+                from_client.drainTo(out_to_host);
+                ByteRelay relay = new ByteRelay(client_socket, destination, config.relayBuffers(), config.heapBuffers(),
+                        flow, deadlines, config.pumpExecutor());
+                try {
+                    relay.run();
+                } finally {
+                    sentUp(relay.bytesToUpstream());
+                    sentDown(relay.bytesToClient());
+                }
+                return false;
+            }
+            if (capture != null) {
+                sentDown(from_host.forwardBody(response_body, capture));
+                if (capture.complete()) {
+                    cache.store(cache_key, response, capture.body(), response_delay_ms);
+                }
+            } else {
+                sentDown(from_host.forwardBody(response_body, client_out));
+            }
+            // a body delimited by its length or by the last chunk leaves both connections at a message boundary
+            return keep_alive && response_body != HttpMessageReader.UNTIL_CLOSE;
+        }
+
+        // resolves a socks4a or socks5 host name through the shared resolver, waiting at most the connect timeout
+        private InetAddress[] resolveHost(String host_name) throws IOException {
+            try {
+                return config.resolver().resolve(host_name).get(config.timeout_ms, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new SocketTimeoutException("resolving " + host_name + " timed out");
+            } catch (ExecutionException e) {
+                throw new UnknownHostException(host_name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while resolving " + host_name);
+            }
+        }
+
+        // counts bytes forwarded to the destination, for the metrics and for this tunnel's log record
+        private void sentUp(long n) {
+            bytes_up += n;
+            metrics.bytes_to_upstream.add(n);
+        }
+
+        // counts bytes forwarded to the client
+        private void sentDown(long n) {
+            bytes_down += n;
+            metrics.bytes_to_client.add(n);
+        }
+
+        private String clientName() {
+            return client_socket.getInetAddress().getHostAddress() + ":" + client_socket.getPort();
         }
 
         // private function which returns a string that represents the closing connection message
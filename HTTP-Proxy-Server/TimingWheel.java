@@ -0,0 +1,132 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hashed timing wheel (Varghese and Lauck) running the timeouts of all tunnels on one thread.
+// A timeout lands in the slot its deadline hashes to, with the number of full turns it still has to wait;
+// every tick the thread walks one slot, so scheduling and cancelling cost O(1) whatever the number of
+// tunnels, at the price of firing up to one tick late. Tasks run on the wheel thread and must be short,
+// e.g. closing a socket or handing work to an event loop.
+public class TimingWheel implements Runnable {
+    // a scheduled task; cancel() is a flag, the wheel unlinks cancelled timeouts when it passes their slot
+    static final class Timeout {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Timeout next;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tick_ms;
+    private final Timeout[] slots;
+    private final int mask;
+    // scheduled by other threads, moved into the slots by the wheel thread at the next tick
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long started = System.currentTimeMillis();
+    // only touched by the wheel thread
+    private long tick;
+    // timeouts in the wheel or waiting to enter it, cancelled ones included until they are unlinked
+    private final AtomicInteger pending = new AtomicInteger();
+
+    final LongAdder expired = new LongAdder();
+
+    // slot_count is rounded up to a power of two
+    public TimingWheel(long tick_ms, int slot_count) {
+        this.tick_ms = Math.max(1, tick_ms);
+        this.slots = new Timeout[Integer.highestOneBit(Math.max(1, slot_count - 1)) << 1];
+        this.mask = slots.length - 1;
+        Thread t = new Thread(this, "sockspy-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // runs task on the wheel thread delay_ms from now (rounded up to the next tick)
+    public Timeout schedule(long delay_ms, Runnable task) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delay_ms));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    public int pending() {
+        return pending.get();
+    }
+
+    public void run() {
+        while (true) {
+            long next_tick_at = started + (tick + 1) * tick_ms;
+            long sleep = next_tick_at - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            transferAdded();
+            expire((int) (tick & mask));
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                pending.decrementAndGet();
+                continue;
+            }
+            // the tick at or after the deadline, never one already passed
+            long due = Math.max(tick, (timeout.deadline - started + tick_ms - 1) / tick_ms);
+            timeout.rounds = (due - tick) / slots.length;
+            int slot = (int) (due & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+    }
+
+    private void expire(int slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean remove;
+            if (timeout.cancelled) {
+                remove = true;
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                remove = false;
+            } else {
+                remove = true;
+                expired.increment();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e);
+                }
+            }
+            if (remove) {
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                pending.decrementAndGet();
+            } else {
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket kept as a single timestamp (the "theoretical arrival time" of GCRA) instead of a token
+// count and a refill timer. Sending n bytes pushes the timestamp n / rate seconds ahead; the bucket is
+// full again once the timestamp lies burst / rate seconds in the past. reserve() is one CAS, so any number
+// of pumps can draw from the same bucket without a lock, and the rate can change between two calls.
+public class TokenBucket {
+    // when the bytes reserved so far have all drained at the current rate, in System.nanoTime() time
+    private final AtomicLong drained_at = new AtomicLong(System.nanoTime());
+    // tunnels using the bucket, only changed inside ConcurrentHashMap.compute of the owning map
+    int refs;
+
+    // takes n bytes and returns how many nanoseconds the caller should wait before sending them;
+    // a rate of 0 or less means unlimited
+    public long reserve(long n, long rate, long burst) {
+        if (rate <= 0) {
+            return 0;
+        }
+        long cost = n * 1_000_000_000L / rate;
+        long tolerance = burst * 1_000_000_000L / rate;
+        while (true) {
+            long now = System.nanoTime();
+            long previous = drained_at.get();
+            long next = (previous - now > 0 ? previous : now) + cost;
+            if (drained_at.compareAndSet(previous, next)) {
+                return Math.max(0, next - now - tolerance);
+            }
+        }
+    }
+
+    // nothing reserved is still draining, so forgetting the bucket loses no debt
+    public boolean idle() {
+        return drained_at.get() - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// The deadlines of one tunnel on the shared TimingWheel: the handshake (request, lookup and connect) has
+// handshake_ms from the accept, the relay may go idle_ms without traffic, and the whole tunnel may live
+// lifetime_ms; 0 turns a deadline off. The first one to pass calls on_expire once with its reason, which
+// closes the tunnel's sockets, so no thread waits on a read timeout and a slow but moving stream is never cut.
+// Traffic only stamps the time: the idle timeout is not moved on every read, when it fires too early it is
+// set again for the rest of the idle period.
+public class TunnelDeadlines {
+    static final String HANDSHAKE = "handshake-timeout";
+    static final String IDLE = "idle-timeout";
+    static final String LIFETIME = "lifetime-exceeded";
+
+    private final TimingWheel wheel;
+    private final long handshake_ms;
+    private final long lifetime_ms;
+    private final Consumer<String> on_expire;
+    private volatile long idle_ms;
+    private volatile long last_activity = System.currentTimeMillis();
+    private final AtomicReference<String> expired = new AtomicReference<>();
+
+    // guarded by this
+    private TimingWheel.Timeout handshake;
+    private TimingWheel.Timeout idle;
+    private TimingWheel.Timeout lifetime;
+    private boolean established;
+    private boolean cancelled;
+
+    public TunnelDeadlines(TimingWheel wheel, long handshake_ms, long idle_ms, long lifetime_ms,
+                           Consumer<String> on_expire) {
+        this.wheel = wheel;
+        this.handshake_ms = handshake_ms;
+        this.idle_ms = idle_ms;
+        this.lifetime_ms = lifetime_ms;
+        this.on_expire = on_expire;
+        synchronized (this) {
+            if (handshake_ms > 0) {
+                handshake = wheel.schedule(handshake_ms, () -> expire(HANDSHAKE));
+            }
+            if (lifetime_ms > 0) {
+                lifetime = wheel.schedule(lifetime_ms, () -> expire(LIFETIME));
+            }
+        }
+    }
+
+    // the handshake is over; from now on the tunnel is watched for idleness, unless track_idle is false
+    // (a UDP association, whose TCP connection stays silent by design)
+    public synchronized void established(boolean track_idle) {
+        established = true;
+        if (handshake != null) {
+            handshake.cancel();
+            handshake = null;
+        }
+        last_activity = System.currentTimeMillis();
+        if (!track_idle) {
+            idle_ms = 0;
+        }
+        scheduleIdle(idle_ms);
+    }
+
+    // bytes moved
+    public void touch() {
+        last_activity = System.currentTimeMillis();
+    }
+
+    // a stream whose writes count as traffic
+    public OutputStream track(OutputStream out) {
+        return new FilterOutputStream(out) {
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                touch();
+            }
+
+            public void write(int b) throws IOException {
+                out.write(b);
+                touch();
+            }
+        };
+    }
+
+    // a different idle allowance from now on, e.g. the shorter wait for the next request of a keep-alive client
+    public synchronized void idleTimeout(long ms) {
+        if (ms == idle_ms) {
+            return;
+        }
+        idle_ms = ms;
+        touch();
+        if (established) {
+            scheduleIdle(ms);
+        }
+    }
+
+    private void scheduleIdle(long delay_ms) {
+        if (idle != null) {
+            idle.cancel();
+            idle = null;
+        }
+        if (!cancelled && idle_ms > 0) {
+            idle = wheel.schedule(delay_ms, this::checkIdle);
+        }
+    }
+
+    private void checkIdle() {
+        synchronized (this) {
+            long quiet = System.currentTimeMillis() - last_activity;
+            if (cancelled || idle_ms <= 0) {
+                return;
+            }
+            if (quiet < idle_ms) {
+                scheduleIdle(idle_ms - quiet);
+                return;
+            }
+        }
+        expire(IDLE);
+    }
+
+    private void expire(String reason) {
+        if (expired.compareAndSet(null, reason)) {
+            cancel();
+            on_expire.accept(reason);
+        }
+    }
+
+    // the tunnel ended on its own
+    public synchronized void cancel() {
+        cancelled = true;
+        for (TimingWheel.Timeout timeout : new TimingWheel.Timeout[]{handshake, idle, lifetime}) {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+        handshake = idle = lifetime = null;
+    }
+
+    // the reason the tunnel was closed by a deadline, null if it was not
+    public String expired() {
+        return expired.get();
+    }
+}
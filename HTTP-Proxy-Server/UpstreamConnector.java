@@ -0,0 +1,415 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Connects to a destination that resolved to several addresses the way RFC 8305 ("happy eyeballs") does.
+// The addresses are interleaved by family, the first attempt starts at once and every attempt_delay_ms
+// (or as soon as the previous attempt failed) the next one joins the race; the first connection wins and
+// the others are closed. Addresses that connected before are tried first, fastest first. Each address has
+// its own connect timeout, derived like TCP's retransmission timeout (RFC 6298) from the connect times seen
+// so far and clamped to [min_timeout_ms, the caller's timeout]; when it passes while other addresses are
+// waiting, the next one starts early and the slow attempt keeps going. The last attempt of a race always
+// runs until the caller's timeout. Addresses whose last attempt failed are tried last for failure_ttl_ms,
+// and those that failed FAILURE_THRESHOLD times in a row are skipped while another address is left; the
+// last address is always tried, so a destination with one address is never refused without trying.
+// All attempts run non-blocking on one selector thread; open() waits for the winner for blocking callers.
+public class UpstreamConnector implements Runnable {
+    // addresses with connect statistics, the least recently used are forgotten beyond this
+    static final int MAX_PEERS = 4096;
+    // consecutive failures after which a recently failed address is skipped when others are left
+    static final int FAILURE_THRESHOLD = 3;
+
+    private final long attempt_delay_ms;
+    private final long min_timeout_ms;
+    private final long failure_ttl_ms;
+    // options of upstream sockets, set before connecting
+    private final SocketTuning tuning;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<Race> races = new ArrayList<>();
+    // only touched by the connector thread
+    private final Map<InetSocketAddress, Peer> peers = new LinkedHashMap<InetSocketAddress, Peer>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Peer> eldest) {
+            return size() > MAX_PEERS;
+        }
+    };
+
+    // races won by an address other than the first one, and addresses skipped from failure memory
+    final LongAdder fallbacks = new LongAdder();
+    final LongAdder fast_failures = new LongAdder();
+
+    // what the connector remembers about one address
+    static final class Peer {
+        // smoothed connect time and its variation in milliseconds, srtt < 0 until the first success
+        double srtt = -1;
+        double rttvar;
+        long failed_until;
+        // failed attempts since the last success
+        int consecutive_failures;
+    }
+
+    // one connect() call: the candidate addresses and the attempts currently in flight
+    final class Race {
+        final List<InetSocketAddress> candidates;
+        final CompletableFuture<SocketChannel> result;
+        final long deadline;
+        final long max_timeout_ms;
+        final List<Attempt> attempts = new ArrayList<>();
+        int next;
+        long next_attempt_at;
+        IOException last_failure;
+
+        Race(List<InetSocketAddress> candidates, int timeout_ms, CompletableFuture<SocketChannel> result) {
+            this.candidates = candidates;
+            this.result = result;
+            this.max_timeout_ms = timeout_ms;
+            this.deadline = System.currentTimeMillis() + timeout_ms;
+        }
+    }
+
+    final class Attempt {
+        final Race race;
+        final int index;
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        final long started = System.nanoTime();
+        // the adaptive timeout while other addresses wait, then the race deadline
+        long deadline;
+        SelectionKey key;
+
+        Attempt(Race race, int index, InetSocketAddress address, SocketChannel channel, long deadline) {
+            this.race = race;
+            this.index = index;
+            this.address = address;
+            this.channel = channel;
+            this.deadline = deadline;
+        }
+    }
+
+    public UpstreamConnector(long attempt_delay_ms, long min_timeout_ms, long failure_ttl_ms, SocketTuning tuning)
+            throws IOException {
+        this.attempt_delay_ms = attempt_delay_ms;
+        this.min_timeout_ms = min_timeout_ms;
+        this.failure_ttl_ms = failure_ttl_ms;
+        this.tuning = tuning;
+        this.selector = Selector.open();
+        Thread t = new Thread(this, "sockspy-connector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // completes with a connected, non-blocking channel that is not registered with any selector
+    public CompletableFuture<SocketChannel> connect(InetAddress[] addresses, int port, int timeout_ms) {
+        CompletableFuture<SocketChannel> result = new CompletableFuture<>();
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        for (InetAddress address : interleave(addresses)) {
+            candidates.add(new InetSocketAddress(address, port));
+        }
+        tasks.add(() -> start(new Race(candidates, timeout_ms, result)));
+        selector.wakeup();
+        return result;
+    }
+
+    // connect() for blocking callers, the returned socket is in blocking mode
+    public Socket open(InetAddress[] addresses, int port, int timeout_ms) throws IOException {
+        CompletableFuture<SocketChannel> result = connect(addresses, port, timeout_ms);
+        try {
+            // the race ends by its own deadline, the extra second only guards against a stuck connector
+            SocketChannel channel = result.get(timeout_ms + 1000L, TimeUnit.MILLISECONDS);
+            channel.configureBlocking(true);
+            return channel.socket();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            result.cancel(false);
+            throw new SocketTimeoutException("connect timed out");
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new SocketTimeoutException("interrupted while connecting");
+        }
+    }
+
+    // RFC 8305 section 4: alternate families, starting with the family of the first address
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean first_is_v6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == first_is_v6 ? first : second).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) ordered.add(first.get(i));
+            if (i < second.size()) ordered.add(second.get(i));
+        }
+        return ordered;
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select(nextTimer());
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                List<Attempt> won = new ArrayList<>();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Attempt attempt = (Attempt) key.attachment();
+                    if (!key.isValid() || !attempt.race.attempts.contains(attempt)) {
+                        continue;
+                    }
+                    try {
+                        if (attempt.channel.finishConnect()) {
+                            won.add(attempt);
+                            win(attempt);
+                        }
+                    } catch (IOException e) {
+                        fail(attempt, e);
+                    }
+                }
+                expire();
+                if (!won.isEmpty()) {
+                    // the winners' keys are cancelled, a select completes their deregistration so the
+                    // new owner can register them elsewhere or switch them to blocking mode
+                    selector.selectNow();
+                    for (Attempt attempt : won) {
+                        if (!attempt.race.result.complete(attempt.channel)) {
+                            // the caller gave up in the meantime
+                            closeQuietly(attempt.channel);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // a selector failure is not attributable to a single race, keep serving the others
+            }
+        }
+    }
+
+    private void start(Race race) {
+        long now = System.currentTimeMillis();
+        // addresses that failed recently go to the end of the race, and those that keep failing are left out
+        // unless nothing else would be tried
+        List<InetSocketAddress> healthy = new ArrayList<>();
+        List<InetSocketAddress> failing = new ArrayList<>();
+        List<InetSocketAddress> dead = new ArrayList<>();
+        for (InetSocketAddress address : race.candidates) {
+            Peer peer = peers.get(address);
+            if (peer == null || peer.failed_until <= now) {
+                healthy.add(address);
+            } else {
+                (peer.consecutive_failures >= FAILURE_THRESHOLD ? dead : failing).add(address);
+            }
+        }
+        if (healthy.isEmpty() && failing.isEmpty() && !dead.isEmpty()) {
+            // the last candidate is tried anyway, bounded by the race deadline
+            failing.add(dead.remove(dead.size() - 1));
+        }
+        if (!dead.isEmpty()) {
+            fast_failures.add(dead.size());
+        }
+        if (healthy.isEmpty() && failing.isEmpty()) {
+            race.result.completeExceptionally(new ConnectException("no address to connect to"));
+            return;
+        }
+        // addresses that connected before go first, fastest first (RFC 8305 section 4, historical RTT)
+        healthy.sort(Comparator.comparingDouble(address -> {
+            Peer peer = peers.get(address);
+            return peer == null || peer.srtt < 0 ? Double.MAX_VALUE : peer.srtt;
+        }));
+        race.candidates.clear();
+        race.candidates.addAll(healthy);
+        race.candidates.addAll(failing);
+        races.add(race);
+        startNext(race);
+    }
+
+    private void startNext(Race race) {
+        while (race.next < race.candidates.size()) {
+            int index = race.next++;
+            InetSocketAddress address = race.candidates.get(index);
+            long now = System.currentTimeMillis();
+            race.next_attempt_at = now + attempt_delay_ms;
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                tuning.apply(channel.socket());
+                // the adaptive timeout only matters while another address could take over
+                long deadline = race.next < race.candidates.size()
+                        ? Math.min(race.deadline, now + timeoutFor(address, race.max_timeout_ms)) : race.deadline;
+                Attempt attempt = new Attempt(race, index, address, channel, deadline);
+                race.attempts.add(attempt);
+                if (channel.connect(address)) {
+                    // never registered, so it can be handed out at once
+                    win(attempt);
+                    if (!race.result.complete(channel)) {
+                        closeQuietly(channel);
+                    }
+                } else {
+                    attempt.key = channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+                }
+                return;
+            } catch (IOException e) {
+                // e.g. no route for this family, the next address is tried right away
+                closeQuietly(channel);
+                recordFailure(address);
+                race.last_failure = e;
+            }
+        }
+        if (race.attempts.isEmpty()) {
+            finish(race, race.last_failure != null ? race.last_failure : new ConnectException("connect failed"));
+        }
+    }
+
+    private void win(Attempt attempt) {
+        Race race = attempt.race;
+        recordSuccess(attempt.address, (System.nanoTime() - attempt.started) / 1_000_000.0);
+        if (attempt.index > 0) {
+            fallbacks.increment();
+        }
+        if (attempt.key != null) {
+            attempt.key.cancel();
+        }
+        race.attempts.remove(attempt);
+        // the losers are dropped without counting against their addresses
+        for (Attempt loser : race.attempts) {
+            closeQuietly(loser.channel);
+        }
+        race.attempts.clear();
+        races.remove(race);
+    }
+
+    private void fail(Attempt attempt, IOException e) {
+        Race race = attempt.race;
+        closeQuietly(attempt.channel);
+        recordFailure(attempt.address);
+        race.attempts.remove(attempt);
+        race.last_failure = e;
+        // a failed attempt does not wait for the stagger, the next address starts immediately
+        startNext(race);
+    }
+
+    private void finish(Race race, IOException failure) {
+        for (Attempt attempt : race.attempts) {
+            closeQuietly(attempt.channel);
+        }
+        race.attempts.clear();
+        races.remove(race);
+        race.result.completeExceptionally(failure);
+    }
+
+    // per attempt timeouts, the stagger, the overall deadline and callers that gave up
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Race race : new ArrayList<>(races)) {
+            if (race.result.isDone()) {
+                finish(race, new ConnectException("cancelled"));
+                continue;
+            }
+            if (now >= race.deadline) {
+                for (Attempt attempt : race.attempts) {
+                    recordFailure(attempt.address);
+                }
+                finish(race, new SocketTimeoutException("connect timed out"));
+                continue;
+            }
+            for (Attempt attempt : race.attempts) {
+                if (now >= attempt.deadline) {
+                    // slower than this address usually is: the next one starts now, this one may still win
+                    attempt.deadline = race.deadline;
+                    race.next_attempt_at = now;
+                }
+            }
+            if (races.contains(race) && now >= race.next_attempt_at && race.next < race.candidates.size()) {
+                startNext(race);
+            }
+        }
+    }
+
+    // milliseconds until the earliest timer of any race, 0 (no timeout) when nothing is racing
+    private long nextTimer() {
+        long earliest = Long.MAX_VALUE;
+        for (Race race : races) {
+            earliest = Math.min(earliest, race.deadline);
+            if (race.next < race.candidates.size()) {
+                earliest = Math.min(earliest, race.next_attempt_at);
+            }
+            for (Attempt attempt : race.attempts) {
+                earliest = Math.min(earliest, attempt.deadline);
+            }
+        }
+        if (earliest == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, earliest - System.currentTimeMillis());
+    }
+
+    // RFC 6298 section 2: srtt + 4 * rttvar, clamped
+    private long timeoutFor(InetSocketAddress address, long max_timeout_ms) {
+        Peer peer = peers.get(address);
+        if (peer == null || peer.srtt < 0) {
+            return max_timeout_ms;
+        }
+        long timeout = (long) Math.ceil(peer.srtt + 4 * peer.rttvar);
+        return Math.max(Math.min(min_timeout_ms, max_timeout_ms), Math.min(timeout, max_timeout_ms));
+    }
+
+    private void recordSuccess(InetSocketAddress address, double millis) {
+        Peer peer = peers.computeIfAbsent(address, a -> new Peer());
+        if (peer.srtt < 0) {
+            peer.srtt = millis;
+            peer.rttvar = millis / 2;
+        } else {
+            peer.rttvar = 0.75 * peer.rttvar + 0.25 * Math.abs(peer.srtt - millis);
+            peer.srtt = 0.875 * peer.srtt + 0.125 * millis;
+        }
+        peer.failed_until = 0;
+        peer.consecutive_failures = 0;
+    }
+
+    private void recordFailure(InetSocketAddress address) {
+        if (failure_ttl_ms > 0) {
+            Peer peer = peers.computeIfAbsent(address, a -> new Peer());
+            peer.failed_until = System.currentTimeMillis() + failure_ttl_ms;
+            peer.consecutive_failures++;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keep-alive pool of upstream connections, one set of idle sockets per destination (host:port).
+// A connection handed out by acquire() must come back through release() when the exchange left it
+// reusable, or through discard() otherwise, so the per-destination limit stays accurate. A destination
+// is the address or the unresolved host name the client asked for, new connections to it are raced over
+// all of its addresses by the UpstreamConnector.
+public class UpstreamPool {
+    private final int max_idle;
+    private final int max_per_host;
+    private final long idle_timeout_ms;
+    private final UpstreamConnector connector;
+    private final Map<InetSocketAddress, HostPool> hosts = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // idle sockets and the number of sockets open to one destination; retired once it has neither, so the
+    // map only holds destinations currently in use
+    static final class HostPool {
+        final InetSocketAddress address;
+        final ArrayDeque<Idle> idle = new ArrayDeque<>();
+        int open;
+        boolean retired;
+
+        HostPool(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    static final class Idle {
+        final Socket socket;
+        final long since;
+
+        Idle(Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+    public UpstreamPool(int max_idle, int max_per_host, long idle_timeout_ms, UpstreamConnector connector) {
+        this.max_idle = max_idle;
+        this.max_per_host = max_per_host;
+        this.idle_timeout_ms = idle_timeout_ms;
+        this.connector = connector;
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sockspy-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(100, idle_timeout_ms / 4);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // returns an idle connection to the destination if a live one is pooled, otherwise connects a new one to
+    // one of the addresses the destination resolved to
+    public Socket acquire(InetSocketAddress address, InetAddress[] addresses, int timeout_ms) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout_ms;
+        HostPool pool;
+        while (true) {
+            pool = hosts.computeIfAbsent(address, HostPool::new);
+            Idle idle;
+            synchronized (pool) {
+                if (pool.retired) {
+                    // emptied and dropped from the map after we looked it up, the next lookup makes a new one
+                    continue;
+                }
+                idle = pool.idle.pollLast();
+                if (idle == null) {
+                    if (pool.open < max_per_host) {
+                        pool.open++;
+                        break;
+                    }
+                    // every connection to this destination is busy, wait for one to come back
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("no free connection to " + address);
+                    }
+                    try {
+                        pool.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SocketTimeoutException("interrupted while waiting for " + address);
+                    }
+                    continue;
+                }
+            }
+            // the liveness probe blocks for a moment, so it runs outside the lock; the socket is out of the idle
+            // list but still counted as open, which also keeps the pool from being retired meanwhile
+            if (isAlive(idle.socket)) {
+                hits.incrementAndGet();
+                return idle.socket;
+            }
+            synchronized (pool) {
+                close(pool, idle.socket);
+                pool.notify();
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            return connector.open(addresses, address.getPort(), (int) Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (IOException e) {
+            synchronized (pool) {
+                pool.open--;
+                retireIfUnused(pool);
+                pool.notify();
+            }
+            throw e;
+        }
+    }
+
+    // hands a connection that finished a complete exchange back for reuse
+    public void release(InetSocketAddress address, Socket socket) {
+        HostPool pool = hosts.get(address);
+        if (pool == null) {
+            closeQuietly(socket);
+            return;
+        }
+        synchronized (pool) {
+            if (socket.isClosed() || pool.idle.size() >= max_idle) {
+                close(pool, socket);
+            } else {
+                pool.idle.addLast(new Idle(socket, System.currentTimeMillis()));
+            }
+            pool.notify();
+        }
+    }
+
+    // closes a connection that cannot be reused
+    public void discard(InetSocketAddress address, Socket socket) {
+        HostPool pool = hosts.get(address);
+        if (pool == null) {
+            closeQuietly(socket);
+            return;
+        }
+        synchronized (pool) {
+            close(pool, socket);
+            pool.notify();
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    // destinations with open or idle connections
+    public int destinations() {
+        return hosts.size();
+    }
+
+    public String stats() {
+        return "upstream pool: " + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions";
+    }
+
+    private void evictIdle() {
+        long oldest_allowed = System.currentTimeMillis() - idle_timeout_ms;
+        for (HostPool pool : hosts.values()) {
+            synchronized (pool) {
+                Iterator<Idle> it = pool.idle.iterator();
+                while (it.hasNext()) {
+                    Idle idle = it.next();
+                    if (idle.since < oldest_allowed) {
+                        it.remove();
+                        close(pool, idle.socket);
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    // an idle keep-alive connection must have nothing to read; EOF or stray bytes mean the server gave up on it
+    private static boolean isAlive(Socket socket) {
+        if (socket.isClosed() || socket.isInputShutdown()) {
+            return false;
+        }
+        try {
+            InputStream in = socket.getInputStream();
+            if (in.available() > 0) {
+                return false;
+            }
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // called with the pool's lock held, like retireIfUnused()
+    private void close(HostPool pool, Socket socket) {
+        pool.open--;
+        closeQuietly(socket);
+        retireIfUnused(pool);
+    }
+
+    private void retireIfUnused(HostPool pool) {
+        if (pool.open == 0 && pool.idle.isEmpty()) {
+            pool.retired = true;
+            hosts.remove(pool.address, pool);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
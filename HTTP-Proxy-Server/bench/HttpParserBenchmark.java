@@ -0,0 +1,100 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Framing cost of HttpMessageReader: pipelined request heads, and Content-Length vs chunked response bodies.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpParserBenchmark {
+    static final int PIPELINED = 100;
+
+    @Param({"1024", "65536"})
+    int body_size;
+
+    byte[] requests;
+    byte[] content_length_response;
+    byte[] chunked_response;
+    final OutputStream sink = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        StringBuilder pipeline = new StringBuilder();
+        for (int i = 0; i < PIPELINED; i++) {
+            pipeline.append("GET /assets/").append(i).append(".js HTTP/1.1\r\n")
+                    .append("Host: www.example.com\r\n")
+                    .append("User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n")
+                    .append("Accept: */*\r\n")
+                    .append("Accept-Encoding: gzip, deflate\r\n")
+                    .append("Connection: keep-alive\r\n\r\n");
+        }
+        requests = pipeline.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        byte[] body = new byte[body_size];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        content_length_response = concat(("HTTP/1.1 200 OK\r\nContent-Length: " + body_size + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1), body);
+
+        byte[] chunked = ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        for (int off = 0; off < body_size; off += 4096) {
+            int n = Math.min(4096, body_size - off);
+            chunked = concat(chunked, (Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            byte[] piece = new byte[n];
+            System.arraycopy(body, off, piece, 0, n);
+            chunked = concat(chunked, piece);
+            chunked = concat(chunked, "\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        chunked_response = concat(chunked, "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED)
+    public int pipelinedRequestHeads() throws IOException {
+        HttpMessageReader reader = new HttpMessageReader(new ByteArrayInputStream(requests));
+        int n = 0;
+        HttpHead head;
+        while ((head = reader.readHead()) != null) {
+            n += head.headerCount();
+        }
+        return n;
+    }
+
+    @Benchmark
+    public long contentLengthResponse() throws IOException {
+        return forwardResponse(content_length_response);
+    }
+
+    @Benchmark
+    public long chunkedResponse() throws IOException {
+        return forwardResponse(chunked_response);
+    }
+
+    private long forwardResponse(byte[] response) throws IOException {
+        HttpMessageReader reader = new HttpMessageReader(new ByteArrayInputStream(response));
+        HttpHead head = reader.readHead();
+        head.writeTo(sink);
+        return reader.forwardBody(HttpMessageReader.bodyLength(head, "GET"), sink);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length + b.length];
+        System.arraycopy(a, 0, out, 0, a.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Self-contained load test for Sockspy on loopback.
+// Starts a local origin (an HTTP/1.1 server with a fixed body, or an echo server), optionally the proxy
+// itself, and then drives a fleet of SOCKS4/4a clients through the proxy at each concurrency level,
+// printing tunnels/s, requests/s, throughput and tunnel latency percentiles.
+//
+//   java -cp out LoadTest [--proxy=127.0.0.1:8080] [--start-proxy="--nio --port=8080"] [--mode=http|echo]
+//        [--socks4a] [--concurrency=1,16,64,256] [--duration=10] [--body=1024] [--requests-per-tunnel=1]
+public class LoadTest {
+    String proxy_host = "127.0.0.1";
+    int proxy_port = 8080;
+    String start_proxy;
+    boolean echo;
+    boolean socks4a;
+    int[] concurrency = {1, 16, 64, 256};
+    int duration_s = 10;
+    int body_size = 1024;
+    int requests_per_tunnel = 1;
+
+    int origin_port;
+    byte[] body;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? null : arg.substring(eq + 1);
+            switch (key) {
+                case "--proxy":
+                    test.proxy_host = value.substring(0, value.lastIndexOf(':'));
+                    test.proxy_port = Integer.parseInt(value.substring(value.lastIndexOf(':') + 1));
+                    break;
+                case "--start-proxy":
+                    test.start_proxy = value;
+                    break;
+                case "--mode":
+                    test.echo = value.equals("echo");
+                    break;
+                case "--socks4a":
+                    test.socks4a = true;
+                    break;
+                case "--concurrency":
+                    String[] levels = value.split(",");
+                    test.concurrency = new int[levels.length];
+                    for (int i = 0; i < levels.length; i++) {
+                        test.concurrency[i] = Integer.parseInt(levels[i].trim());
+                    }
+                    break;
+                case "--duration":
+                    test.duration_s = Integer.parseInt(value);
+                    break;
+                case "--body":
+                    test.body_size = Integer.parseInt(value);
+                    break;
+                case "--requests-per-tunnel":
+                    test.requests_per_tunnel = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        body = new byte[body_size];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        origin_port = startOrigin();
+        if (start_proxy != null) {
+            String[] proxy_args = start_proxy.trim().isEmpty() ? new String[0] : start_proxy.trim().split("\\s+");
+            Thread proxy = new Thread(() -> {
+                try {
+                    Sockspy.main(proxy_args);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "sockspy");
+            proxy.setDaemon(true);
+            proxy.start();
+            Thread.sleep(500);
+        }
+        System.out.printf("%s origin on port %d, %s through %s:%d, %d byte bodies, %d request(s) per tunnel%n",
+                echo ? "echo" : "http", origin_port, socks4a ? "SOCKS4a" : "SOCKS4", proxy_host, proxy_port,
+                body_size, requests_per_tunnel);
+        System.out.printf("%11s %10s %10s %10s %10s %10s %10s %8s%n",
+                "concurrency", "tunnels/s", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "errors");
+        for (int level : concurrency) {
+            runLevel(level);
+        }
+    }
+
+    void runLevel(int clients) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram("tunnel");
+        AtomicLong tunnels = new AtomicLong();
+        AtomicLong requests = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long end = System.nanoTime() + duration_s * 1_000_000_000L;
+        List<Thread> fleet = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread client = new Thread(() -> {
+                while (System.nanoTime() < end) {
+                    long started = System.nanoTime();
+                    try {
+                        bytes.addAndGet(tunnel());
+                        latency.recordSince(started);
+                        tunnels.incrementAndGet();
+                        requests.addAndGet(requests_per_tunnel);
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }, "client-" + i);
+            fleet.add(client);
+            client.start();
+        }
+        for (Thread client : fleet) {
+            client.join();
+        }
+        double seconds = duration_s;
+        System.out.printf("%11d %10.0f %10.0f %10.2f %10.2f %10.2f %10.2f %8d%n", clients,
+                tunnels.get() / seconds, requests.get() / seconds, bytes.get() / seconds / (1024 * 1024),
+                latency.percentile(0.5) / 1000.0, latency.percentile(0.99) / 1000.0,
+                latency.percentile(0.999) / 1000.0, errors.get());
+    }
+
+    // one SOCKS tunnel with requests_per_tunnel exchanges, returns the bytes received
+    long tunnel() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(30000);
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(proxy_host, proxy_port), 5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write(socksRequest());
+            byte[] reply = new byte[8];
+            readFully(in, reply, 8);
+            if (reply[1] != 0x5A) {
+                throw new IOException("proxy rejected the request: " + reply[1]);
+            }
+            long received = 0;
+            if (echo) {
+                byte[] back = new byte[body.length];
+                for (int i = 0; i < requests_per_tunnel; i++) {
+                    out.write(body);
+                    readFully(in, back, back.length);
+                    received += back.length;
+                }
+                return received;
+            }
+            HttpMessageReader reader = new HttpMessageReader(in);
+            OutputStream discard = OutputStream.nullOutputStream();
+            for (int i = 0; i < requests_per_tunnel; i++) {
+                boolean last = i == requests_per_tunnel - 1;
+                out.write(("GET /load HTTP/1.1\r\nHost: localhost\r\nConnection: " + (last ? "close" : "keep-alive")
+                        + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                HttpHead head = reader.readHead();
+                if (head == null || head.status() != 200) {
+                    throw new IOException("bad response");
+                }
+                received += head.length + reader.forwardBody(HttpMessageReader.bodyLength(head, "GET"), discard);
+            }
+            return received;
+        }
+    }
+
+    byte[] socksRequest() {
+        byte[] host = "localhost".getBytes(StandardCharsets.US_ASCII);
+        byte[] request = new byte[socks4a ? 10 + host.length + 1 : 10];
+        request[0] = 4;
+        request[1] = 1;
+        request[2] = (byte) (origin_port >> 8);
+        request[3] = (byte) origin_port;
+        if (socks4a) {
+            request[7] = 1;
+            System.arraycopy(host, 0, request, 10, host.length);
+        } else {
+            byte[] ip = InetAddress.getLoopbackAddress().getAddress();
+            System.arraycopy(ip, 0, request, 4, 4);
+        }
+        // request[8] is a one character USERID and request[9] its terminator
+        request[8] = 'u';
+        return request;
+    }
+
+    int startOrigin() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        ExecutorService connections = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "origin");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    connections.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "origin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            if (echo) {
+                in.transferTo(out);
+                return;
+            }
+            HttpMessageReader reader = new HttpMessageReader(in);
+            byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            HttpHead request;
+            while ((request = reader.readHead()) != null) {
+                boolean keep_alive = request.keepAlive();
+                out.write(head);
+                out.write(body);
+                out.flush();
+                if (!keep_alive) {
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buf, read, length - read);
+            if (n < 0) {
+                throw new IOException("connection closed early");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of ByteRelay over loopback: bytes written on the client side, relayed, read on the upstream side.
+// The channel variant uses the direct buffer path, the stream variant the byte[] fallback.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    static final int PAYLOAD = 64 * 1024;
+
+    @Param({"channel", "stream"})
+    String sockets;
+
+    Socket client_end;
+    Socket upstream_end;
+    InputStream upstream_in;
+    OutputStream client_out;
+    final byte[] payload = new byte[PAYLOAD];
+    final byte[] sink = new byte[PAYLOAD];
+
+    @Setup
+    public void setup() throws IOException {
+        // client_end <-> relay_client ... relay_upstream <-> upstream_end
+        Socket[] client_pair = pair(sockets.equals("channel"));
+        Socket[] upstream_pair = pair(sockets.equals("channel"));
+        client_end = client_pair[0];
+        upstream_end = upstream_pair[1];
+        // the proxy's default buffer pools, a shaper without limits and no deadlines
+        ProxyConfig config = new ProxyConfig();
+        ByteRelay relay = new ByteRelay(client_pair[1], upstream_pair[0], config.relayBuffers(), config.heapBuffers(),
+                config.shaper().open(client_pair[1].getInetAddress(), upstream_pair[0].getInetAddress()),
+                new TunnelDeadlines(config.timingWheel(), 0, 0, 0, reason -> { }), config.pumpExecutor());
+        Thread t = new Thread(() -> {
+            try {
+                relay.run();
+            } catch (IOException ignored) {
+            }
+        }, "relay");
+        t.setDaemon(true);
+        t.start();
+        client_out = client_end.getOutputStream();
+        upstream_in = upstream_end.getInputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client_end.close();
+        upstream_end.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD)
+    public int relay64k() throws IOException {
+        client_out.write(payload);
+        int read = 0;
+        while (read < PAYLOAD) {
+            read += upstream_in.read(sink, 0, PAYLOAD - read);
+        }
+        return read;
+    }
+
+    // a connected loopback pair, created from channels when asked so ByteRelay takes its direct buffer path
+    static Socket[] pair(boolean channels) throws IOException {
+        if (channels) {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                SocketChannel a = SocketChannel.open(server.getLocalAddress());
+                SocketChannel b = server.accept();
+                return new Socket[]{a.socket(), b.socket()};
+            }
+        }
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket a = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Socket b = server.accept();
+            return new Socket[]{a, b};
+        }
+    }
+}
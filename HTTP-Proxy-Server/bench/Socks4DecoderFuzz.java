@@ -0,0 +1,182 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+// Randomized test of Socks4Decoder, run as a plain program that needs no JMH:
+//
+//   javac -cp out -d out bench/Socks4Requests.java bench/Socks4DecoderFuzz.java
+//   java -cp out Socks4DecoderFuzz [iterations] [seed]
+//
+// Valid requests must decode to what the original ConnectionHandler code read from the same bytes, in heap
+// and direct buffers, when fed byte by byte and through a HandshakeReader whose stream returns random chunk
+// sizes. Mutated, truncated and random inputs may be rejected with an IOException but must never make the
+// decoder read outside the bytes it was given or throw anything else. Exits with status 1 on the first failure.
+public class Socks4DecoderFuzz {
+    final Random random;
+    final Socks4Decoder decoder = new Socks4Decoder();
+
+    Socks4DecoderFuzz(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Socks4DecoderFuzz fuzz = new Socks4DecoderFuzz(seed);
+        for (int i = 0; i < iterations; i++) {
+            try {
+                fuzz.valid();
+                fuzz.mutated();
+            } catch (AssertionError | RuntimeException e) {
+                System.err.println("iteration " + i + " with seed " + seed + " failed: " + e);
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        System.out.println(iterations + " iterations passed, seed " + seed);
+    }
+
+    void valid() throws IOException {
+        boolean socks4a = random.nextBoolean();
+        byte[] ip = socks4a ? new byte[]{0, 0, 0, (byte) (1 + random.nextInt(255))} : randomIp();
+        String user = text(random.nextInt(Socks4Decoder.MAX_FIELD + 1));
+        String host = socks4a ? text(1 + random.nextInt(Socks4Decoder.MAX_FIELD)) : null;
+        byte[] request = Socks4Requests.request(ip, user, host);
+        request[1] = (byte) (1 + random.nextInt(2));
+        request[2] = (byte) random.nextInt(256);
+        request[3] = (byte) random.nextInt(256);
+        int port = ((request[2] & 0xff) << 8) | (request[3] & 0xff);
+        String legacy = Socks4Requests.legacyParse(new ByteArrayInputStream(request));
+
+        // whole request followed by pipelined bytes, in a heap and in a direct buffer
+        byte[] trailing = new byte[random.nextInt(64)];
+        random.nextBytes(trailing);
+        byte[] input = concat(request, trailing);
+        for (ByteBuffer buf : new ByteBuffer[]{ByteBuffer.wrap(input), direct(input)}) {
+            check(decoder.decode(buf, 0, input.length) == request.length, "request length");
+            check(decoder.port == port && decoder.command == request[1], "port or command");
+            check((host == null ? "" : host).concat(Integer.toString(port)).equals(legacy), "differs from the legacy parse");
+            check(host == null ? decoder.host_name == null && Arrays.equals(decoder.address().getAddress(), ip)
+                    : host.equals(decoder.host_name), "address");
+        }
+
+        // every proper prefix is incomplete, never an error
+        ByteBuffer buf = ByteBuffer.wrap(request);
+        for (int length = 0; length < request.length; length++) {
+            check(decoder.decode(buf, 0, length) == 0, "prefix of " + length + " bytes decoded");
+        }
+
+        // at an offset inside a larger buffer
+        int offset = random.nextInt(32);
+        byte[] shifted = new byte[offset + input.length];
+        System.arraycopy(input, 0, shifted, offset, input.length);
+        check(decoder.decode(ByteBuffer.wrap(shifted), offset, input.length) == request.length, "decode at an offset");
+
+        // through the blocking reader, whatever the segmentation
+        HandshakeReader reader = new HandshakeReader(new ChoppyStream(input));
+        reader.decode(decoder);
+        check(decoder.port == port && (host == null || host.equals(decoder.host_name)), "reader decode");
+        byte[] rest = reader.remaining().readAllBytes();
+        reader.release();
+        check(Arrays.equals(rest, trailing), "bytes after the request");
+    }
+
+    void mutated() {
+        byte[] input;
+        switch (random.nextInt(3)) {
+            case 0:
+                input = new byte[1 + random.nextInt(Socks4Decoder.MAX_REQUEST_LENGTH + 64)];
+                random.nextBytes(input);
+                input[0] = 4;
+                break;
+            case 1:
+                byte[] request = Socks4Requests.request(randomIp(), text(random.nextInt(300)),
+                        random.nextBoolean() ? text(random.nextInt(300)) : null);
+                input = Arrays.copyOf(request, random.nextInt(request.length + 1));
+                break;
+            default:
+                input = Socks4Requests.request(new byte[]{0, 0, 0, 1}, text(20), text(20));
+                for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                    input[random.nextInt(input.length)] = (byte) random.nextInt(256);
+                }
+        }
+        // the buffer is larger than the input and filled with NULs past it, which the decoder must not see
+        byte[] padded = Arrays.copyOf(input, input.length + 600);
+        int n;
+        try {
+            n = decoder.decode(ByteBuffer.wrap(padded), 0, input.length);
+        } catch (IOException e) {
+            return;
+        }
+        check(n == 0 || (n >= 9 && n <= input.length), "decoded length " + n + " of " + input.length);
+        if (n > 0) {
+            try {
+                check(decoder.decode(ByteBuffer.wrap(input, 0, n).slice(), 0, n) == n, "not repeatable");
+            } catch (IOException e) {
+                throw new AssertionError("rejected its own decoded prefix", e);
+            }
+        }
+    }
+
+    byte[] randomIp() {
+        byte[] ip = new byte[4];
+        random.nextBytes(ip);
+        ip[0] = (byte) (1 + random.nextInt(255));
+        return ip;
+    }
+
+    // printable ASCII, so never a NUL
+    String text(int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (33 + random.nextInt(94));
+        }
+        return new String(chars);
+    }
+
+    static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        buf.clear();
+        return buf;
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    // hands the bytes out in random pieces, like a socket receiving several segments
+    final class ChoppyStream extends InputStream {
+        final byte[] bytes;
+        int pos;
+
+        ChoppyStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public int read() {
+            return pos < bytes.length ? bytes[pos++] & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (pos == bytes.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, bytes.length - pos), 1 + random.nextInt(40));
+            System.arraycopy(bytes, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
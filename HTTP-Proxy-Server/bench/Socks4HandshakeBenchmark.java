@@ -0,0 +1,71 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// SOCKS4/4a request parsing: the original ConnectionHandler code, with one read() per field and one per byte
+// of the USERID and the 4a hostname, against Socks4Decoder both behind a HandshakeReader and on its own.
+// Against an in-memory stream this measures the call overhead only, on a socket every one of the legacy
+// reads can be a system call while the HandshakeReader path takes one read per request.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Socks4HandshakeBenchmark {
+    byte[] socks4;
+    byte[] socks4a;
+    ByteBuffer socks4_buffer;
+    ByteBuffer socks4a_buffer;
+    final Socks4Decoder decoder = new Socks4Decoder();
+
+    @Setup
+    public void setup() {
+        socks4 = Socks4Requests.request(new byte[]{93, (byte) 184, (byte) 216, 34}, "anonymous", null);
+        socks4a = Socks4Requests.request(new byte[]{0, 0, 0, 1}, "anonymous", "static.assets.example.com");
+        socks4_buffer = ByteBuffer.wrap(socks4);
+        socks4a_buffer = ByteBuffer.wrap(socks4a);
+    }
+
+    @Benchmark
+    public String socks4() throws IOException {
+        return Socks4Requests.legacyParse(new ByteArrayInputStream(socks4));
+    }
+
+    @Benchmark
+    public String socks4a() throws IOException {
+        return Socks4Requests.legacyParse(new ByteArrayInputStream(socks4a));
+    }
+
+    @Benchmark
+    public int readerSocks4() throws IOException {
+        return readerParse(new ByteArrayInputStream(socks4));
+    }
+
+    @Benchmark
+    public int readerSocks4a() throws IOException {
+        return readerParse(new ByteArrayInputStream(socks4a));
+    }
+
+    @Benchmark
+    public int decodeSocks4() throws IOException {
+        return decoder.decode(socks4_buffer, 0, socks4.length) + decoder.port;
+    }
+
+    @Benchmark
+    public int decodeSocks4a() throws IOException {
+        return decoder.decode(socks4a_buffer, 0, socks4a.length) + decoder.host_name.length();
+    }
+
+    // the path of ConnectionHandler.run today
+    int readerParse(InputStream in) throws IOException {
+        HandshakeReader reader = new HandshakeReader(in);
+        reader.decode(decoder);
+        reader.release();
+        return decoder.port;
+    }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// SOCKS4/4a request bytes and the original ConnectionHandler parse of them, shared by Socks4HandshakeBenchmark
+// and Socks4DecoderFuzz; needs nothing but the JDK, so the fuzz test compiles without JMH.
+final class Socks4Requests {
+    private Socks4Requests() {
+    }
+
+    // a CONNECT to port 443 of ip, host making it a 4a request when not null
+    static byte[] request(byte[] ip, String user, String host) {
+        byte[] user_bytes = user.getBytes(StandardCharsets.US_ASCII);
+        byte[] host_bytes = host == null ? new byte[0] : host.getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[8 + user_bytes.length + 1 + (host == null ? 0 : host_bytes.length + 1)];
+        out[0] = 4;
+        out[1] = 1;
+        out[2] = 0x01;
+        out[3] = (byte) 0xbb;
+        System.arraycopy(ip, 0, out, 4, 4);
+        System.arraycopy(user_bytes, 0, out, 8, user_bytes.length);
+        if (host != null) {
+            System.arraycopy(host_bytes, 0, out, 9 + user_bytes.length, host_bytes.length);
+        }
+        return out;
+    }
+
+    // the read pattern ConnectionHandler.run had before Socks4Decoder
+    static String legacyParse(InputStream inputStream) throws IOException {
+        byte[] version = new byte[1];
+        inputStream.read(version);
+        byte[] command = new byte[1];
+        inputStream.read(command);
+        byte[] port = new byte[2];
+        inputStream.read(port);
+        byte[] IP = new byte[4];
+        inputStream.read(IP);
+        byte[] current = new byte[1];
+        inputStream.read(current);
+        while (current[0] != 0x00) {
+            inputStream.read(current);
+        }
+        String host_name = "";
+        if (IP[0] == 0 && IP[1] == 0 && IP[2] == 0 && IP[3] != 0) {
+            byte[] curr = new byte[1];
+            inputStream.read(curr);
+            while (curr[0] != 0) {
+                host_name += (char) (curr[0]);
+                inputStream.read(curr);
+            }
+        }
+        int port_number = ((port[0] & 0xff) << 8) | (port[1] & 0xff);
+        return host_name + port_number;
+    }
+}